@@ -0,0 +1,36 @@
+package com.zootil.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the benchmarks jar, takes the usual JMH command line but writes the results as JSON to
+ *  jmh-result.json unless told otherwise so runs can be compared for regressions.
+ */
+public class BenchmarkRunner
+{
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if ( commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats() || commandLine.shouldListWithParams() ) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if ( ! commandLine.getResultFormat().hasValue() ) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if ( ! commandLine.getResult().hasValue() ) {
+            options.result(DEFAULT_RESULT_FILE);
+        }
+
+        new Runner( options.build() ).run();
+    }
+}
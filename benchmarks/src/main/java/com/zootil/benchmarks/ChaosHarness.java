@@ -0,0 +1,474 @@
+package com.zootil.benchmarks;
+
+import com.zootil.election.ElectionManager;
+import com.zootil.election.ElectionWatcher;
+import com.zootil.election.IElectable;
+import com.zootil.metrics.LatencyHistogram;
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.NodeHelper;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs N candidates in one election, each on its own session as if it were its own process, against an in-process
+ *  standalone server, then keeps knocking things over and times how long the election takes to settle again, i.e.
+ *
+ *  java -cp target/benchmarks.jar com.zootil.benchmarks.ChaosHarness -candidates 200 -rounds 100
+ *
+ * Each round waits for exactly one leader, then at random does one of
+ *  kill     crash the leader, its client stops dead without closing the session so its nodes stay until it expires
+ *  close    shut the leader down cleanly, its session is closed and its nodes go at once
+ *  expire   expire the leader's session underneath it, the process lives on and has to notice
+ *  restart  restart the server, every session reconnects
+ * The round is over once exactly one candidate leads, it isn't the leader we went after, and every session is
+ *  connected. A monitor thread polls amITheLeader across the candidates the whole time to catch split brain, two or
+ *  more candidates leading at once.
+ *
+ * There's no quorum mode, 3.4.5 peers on a clock past 2022 hand out clashing session ids (ZOOKEEPER-1622), so
+ *  candidates end up sharing sessions and the results can't be trusted.
+ *
+ * Options, all optional:
+ *  -candidates   how many candidates, default 50
+ *  -rounds       how many disruptions, default 50
+ *  -duration     keep going for this many seconds instead, for a soak
+ *  -sessionTimeout  ms, default ElectionManager.DEFAULT_SESSION_TIMEOUT
+ *  -disruptions  which to pick from, comma separated out of kill,close,expire,restart, default all of them
+ *  -pause        ms to wait between rounds, default 200
+ *  -seed         for the random choices, so a run can be repeated
+ */
+public class ChaosHarness
+{
+    private static final String APP = "chaos";
+    private static final String ELECTION_PATH = "/" + APP + "/" + ElectionWatcher.DEFAULT_ELECTION_NODE;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SETTLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final IElectable IGNORE = new IElectable()
+    {
+        @Override
+        public void leadershipChanged(boolean amILeader)
+        {
+        }
+
+        @Override
+        public void terminatingEventOcurred(Exception e)
+        {
+            e.printStackTrace();
+        }
+    };
+
+    enum Disruption
+    {
+        KILL,
+        CLOSE,
+        EXPIRE,
+        RESTART
+    }
+
+    private final int candidateCount;
+    private final int rounds;
+    private final long durationNanos;
+    private final int sessionTimeout;
+    private final Disruption[] disruptions;
+    private final long pauseMillis;
+    private final Random random;
+
+    private final List<Candidate> live = new CopyOnWriteArrayList<>();
+    private final Map<Disruption, LatencyHistogram> failover = new EnumMap<>(Disruption.class);
+    private final LatencyHistogram allFailovers = new LatencyHistogram();
+    private final List<Long> requestsPerFailover = new ArrayList<>();
+    private final SplitBrainMonitor monitor = new SplitBrainMonitor();
+    private int nextCandidate;
+    private int unsettled;
+
+    private EmbeddedZooKeeper standalone;
+    private String connectString;
+
+    ChaosHarness(int candidateCount, int rounds, long durationNanos, int sessionTimeout,
+                 Disruption[] disruptions, long pauseMillis, long seed)
+    {
+        this.candidateCount = candidateCount;
+        this.rounds = rounds;
+        this.durationNanos = durationNanos;
+        this.sessionTimeout = sessionTimeout;
+        this.disruptions = disruptions;
+        this.pauseMillis = pauseMillis;
+        this.random = new Random(seed);
+        for ( Disruption disruption : Disruption.values() )
+        {
+            failover.put(disruption, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int candidates = 50;
+        int rounds = 50;
+        long durationSeconds = 0;
+        int sessionTimeout = ElectionManager.DEFAULT_SESSION_TIMEOUT;
+        Disruption[] disruptions = Disruption.values();
+        long pauseMillis = 200;
+        long seed = System.nanoTime();
+
+        for ( int i = 0; i + 1 < args.length; i += 2 )
+        {
+            String value = args[i + 1];
+            switch ( args[i] )
+            {
+                case "-candidates":
+                    candidates = Integer.parseInt(value);
+                    break;
+                case "-rounds":
+                    rounds = Integer.parseInt(value);
+                    break;
+                case "-duration":
+                    durationSeconds = Long.parseLong(value);
+                    break;
+                case "-sessionTimeout":
+                    sessionTimeout = Integer.parseInt(value);
+                    break;
+                case "-disruptions":
+                    disruptions = Arrays.stream( value.split(",") )
+                            .map( name -> Disruption.valueOf( name.trim().toUpperCase() ) )
+                            .toArray(Disruption[]::new);
+                    break;
+                case "-pause":
+                    pauseMillis = Long.parseLong(value);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if ( candidates < 2 ) {
+            throw new IllegalArgumentException("Need at least 2 candidates for a failover");
+        }
+
+        System.out.println(String.format("candidates=%d rounds=%s sessionTimeout=%dms disruptions=%s seed=%d",
+                candidates, durationSeconds > 0 ? durationSeconds + "s" : Integer.toString(rounds),
+                sessionTimeout, Arrays.toString(disruptions), seed));
+
+        ChaosHarness harness = new ChaosHarness(candidates, rounds, TimeUnit.SECONDS.toNanos(durationSeconds),
+                sessionTimeout, disruptions, pauseMillis, seed);
+        try {
+            harness.run();
+        }
+        finally {
+            harness.shutdown();
+        }
+        harness.report();
+        System.exit(0);
+    }
+
+    void run() throws Exception
+    {
+        standalone = new EmbeddedZooKeeper();
+        connectString = standalone.getConnectString();
+
+        List<CompletableFuture<Candidate>> joining = new ArrayList<>();
+        for ( int i = 0; i < candidateCount; i++ )
+        {
+            joining.add( startCandidate() );
+        }
+        for ( CompletableFuture<Candidate> candidate : joining )
+        {
+            live.add( candidate.get() );
+        }
+        monitor.start();
+
+        long started = System.nanoTime();
+        for ( int round = 0; durationNanos > 0 ? System.nanoTime() - started < durationNanos : round < rounds; round++ )
+        {
+            Candidate leader = awaitSettled(null);
+            if ( leader == null ) {
+                unsettled++;
+                continue;
+            }
+
+            Disruption disruption = disruptions[ random.nextInt(disruptions.length) ];
+            long requestsBefore = requestCount();
+            long disrupted = System.nanoTime();
+            disrupt(disruption, leader);
+
+            Candidate next = awaitSettled( disruption == Disruption.RESTART ? null : leader );
+            if ( next == null ) {
+                unsettled++;
+            }
+            else {
+                long took = System.nanoTime() - disrupted;
+                failover.get(disruption).record(took);
+                allFailovers.record(took);
+                requestsPerFailover.add( requestCount() - requestsBefore );
+            }
+
+            if ( disruption == Disruption.KILL || disruption == Disruption.CLOSE ) {
+                // keep the numbers up for the next round
+                live.add( startCandidate().get() );
+            }
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private void disrupt(Disruption disruption, Candidate leader) throws Exception
+    {
+        switch ( disruption )
+        {
+            case KILL:
+                // out of the running the moment it dies, its session lives on until the server times it out
+                live.remove(leader);
+                crash( leader.manager.getZooKeeper() );
+                // nothing left to close on the client, this just stops the manager's own threads
+                leader.manager.close();
+                break;
+            case CLOSE:
+                live.remove(leader);
+                leader.manager.close();
+                break;
+            case EXPIRE:
+                expire( leader.manager.getZooKeeper() );
+                break;
+            case RESTART:
+                long disconnects = ZooKeeperMetrics.getDefault().getCount(ZooKeeperMetrics.Counter.DISCONNECT);
+                int connections = standalone.getConnectionCount();
+                standalone.restart();
+                // a client stays connected until it notices its socket has gone, until they all have the election
+                //  would look settled before anyone knew about the restart
+                awaitDisconnects(disconnects, connections);
+                break;
+        }
+    }
+
+    /**
+     * Stop a client dead, as if its process had been killed, no close is sent so the session and its ephemeral nodes
+     *  stay until the server expires it. The client doesn't offer this so we reach in for its connection.
+     */
+    private static void crash(ZooKeeper zk) throws ReflectiveOperationException
+    {
+        Field cnxn = ZooKeeper.class.getDeclaredField("cnxn");
+        cnxn.setAccessible(true);
+        ((ClientCnxn) cnxn.get(zk)).disconnect();
+    }
+
+    private static void awaitDisconnects(long before, int expected)
+    {
+        long deadline = System.nanoTime() + SETTLE_TIMEOUT_NANOS;
+        while ( ZooKeeperMetrics.getDefault().getCount(ZooKeeperMetrics.Counter.DISCONNECT) - before < expected
+                && System.nanoTime() < deadline )
+        {
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    /**
+     * Close a second client on the same session, the server expires it and the owner finds out when it next talks to
+     *  the server
+     */
+    private void expire(ZooKeeper zk) throws IOException, InterruptedException
+    {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper clone = new ZooKeeper(connectString, sessionTimeout, event ->
+        {
+            if ( event.getState() == Watcher.Event.KeeperState.SyncConnected ) {
+                connected.countDown();
+            }
+        }, zk.getSessionId(), zk.getSessionPasswd());
+        connected.await(sessionTimeout, TimeUnit.MILLISECONDS);
+        clone.close();
+    }
+
+    /**
+     * @param previous a leader that mustn't count, or null
+     * @return the one leader once there is exactly one, every session is connected, and it isn't previous, or null
+     *  if that didn't happen in time
+     */
+    private Candidate awaitSettled(Candidate previous)
+    {
+        long deadline = System.nanoTime() + SETTLE_TIMEOUT_NANOS;
+        while ( System.nanoTime() < deadline )
+        {
+            Candidate leader = null;
+            int leaders = 0;
+            boolean connected = true;
+            for ( Candidate candidate : live )
+            {
+                if ( candidate.watcher.amITheLeader() ) {
+                    leader = candidate;
+                    leaders++;
+                }
+                connected &= candidate.manager.getZooKeeper().getState().isConnected();
+            }
+            if ( leaders == 1 && connected && leader != previous ) {
+                return leader;
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+        return null;
+    }
+
+    private CompletableFuture<Candidate> startCandidate() throws IOException, InterruptedException, KeeperException
+    {
+        String identifier = "c" + nextCandidate++;
+        ElectionManager manager = new ElectionManager(connectString, sessionTimeout);
+        if ( live.isEmpty() && nextCandidate == 1 ) {
+            awaitConnected( manager.getZooKeeper() );
+            NodeHelper.createFullPath( manager.getZooKeeper(), ELECTION_PATH );
+        }
+        return ElectionWatcher.builder(APP)
+                .manager(manager)
+                .identifierGenerator( () -> identifier )
+                .electable(IGNORE)
+                .start()
+                .thenApply( watcher -> new Candidate(manager, watcher) );
+    }
+
+    private static void awaitConnected(ZooKeeper zk) throws InterruptedException, IOException
+    {
+        long deadline = System.nanoTime() + SETTLE_TIMEOUT_NANOS;
+        while ( ! zk.getState().isConnected() )
+        {
+            if ( System.nanoTime() > deadline ) {
+                throw new IOException("Couldn't connect to the ensemble");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return every ZK request the candidates have made so far
+     */
+    private static long requestCount()
+    {
+        long count = 0;
+        for ( ZooKeeperMetrics.Operation operation : ZooKeeperMetrics.Operation.values() )
+        {
+            count += ZooKeeperMetrics.getDefault().getOperationHistogram(operation).getCount();
+        }
+        return count;
+    }
+
+    void shutdown() throws InterruptedException
+    {
+        monitor.interrupt();
+        monitor.join();
+        for ( Candidate candidate : live )
+        {
+            candidate.manager.close();
+        }
+        if ( standalone != null ) {
+            standalone.close();
+        }
+    }
+
+    void report()
+    {
+        for ( Disruption disruption : disruptions )
+        {
+            System.out.println(String.format("failover %-7s %s", disruption, failover.get(disruption).summarize()));
+        }
+        System.out.println(String.format("failover %-7s %s", "ALL", allFailovers.summarize()));
+        if ( unsettled > 0 ) {
+            System.out.println(String.format("%d rounds didn't settle within %ds", unsettled,
+                    TimeUnit.NANOSECONDS.toSeconds(SETTLE_TIMEOUT_NANOS)));
+        }
+
+        long[] requests = requestsPerFailover.stream().mapToLong(Long::longValue).sorted().toArray();
+        if ( requests.length > 0 ) {
+            System.out.println(String.format("requests per failover p50=%d p99=%d max=%d", percentile(requests, 50),
+                    percentile(requests, 99), requests[requests.length - 1]));
+        }
+
+        System.out.println(String.format("split brain windows=%d total=%.3fms longest=%.3fms max leaders=%d",
+                monitor.windows, monitor.splitNanos / 1e6, monitor.longestNanos / 1e6, monitor.maxLeaders));
+        System.out.println(String.format("leaderless total=%.3fms", monitor.leaderlessNanos / 1e6));
+    }
+
+    private static long percentile(long[] sorted, double percentile)
+    {
+        int index = (int) Math.ceil( percentile / 100 * sorted.length ) - 1;
+        return sorted[ Math.max(0, index) ];
+    }
+
+    private static class Candidate
+    {
+        final ElectionManager manager;
+        final ElectionWatcher watcher;
+
+        Candidate(ElectionManager manager, ElectionWatcher watcher)
+        {
+            this.manager = manager;
+            this.watcher = watcher;
+        }
+    }
+
+    /**
+     * Polls every candidate about once a ms and times how long more than one, or none, of them thought they led
+     */
+    private class SplitBrainMonitor extends Thread
+    {
+        volatile long windows;
+        volatile long splitNanos;
+        volatile long longestNanos;
+        volatile long leaderlessNanos;
+        volatile int maxLeaders;
+
+        SplitBrainMonitor()
+        {
+            super("split-brain-monitor");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            long splitSince = 0;
+            long last = System.nanoTime();
+            while ( ! isInterrupted() )
+            {
+                int leaders = 0;
+                for ( Candidate candidate : live )
+                {
+                    if ( candidate.watcher.amITheLeader() ) {
+                        leaders++;
+                    }
+                }
+
+                long now = System.nanoTime();
+                if ( leaders > 1 ) {
+                    if ( splitSince == 0 ) {
+                        splitSince = now;
+                        windows++;
+                    }
+                    splitNanos += now - last;
+                    longestNanos = Math.max(longestNanos, now - splitSince);
+                    maxLeaders = Math.max(maxLeaders, leaders);
+                }
+                else {
+                    splitSince = 0;
+                    if ( leaders == 0 ) {
+                        leaderlessNanos += now - last;
+                    }
+                }
+                last = now;
+                LockSupport.parkNanos(POLL_NANOS);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.zootil.benchmarks;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A standalone ZooKeeper server on a loopback port, for benchmarks and test harnesses.
+ */
+public class EmbeddedZooKeeper implements AutoCloseable
+{
+    private static final int TICK_TIME = 2000;
+    private static final int MAX_CLIENT_CONNECTIONS = 5000;
+
+    private final File dataDir;
+    private volatile ServerCnxnFactory factory;
+
+    /**
+     * Start a server on any free loopback port
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public EmbeddedZooKeeper() throws IOException, InterruptedException
+    {
+        this(0);
+    }
+
+    /**
+     * @param port the port to listen on, 0 for any free one
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public EmbeddedZooKeeper(int port) throws IOException, InterruptedException
+    {
+        // we're measuring the client, don't let the disk dominate
+        System.setProperty("zookeeper.forceSync", "no");
+
+        dataDir = Files.createTempDirectory("zootil-zk").toFile();
+        factory = start(port);
+    }
+
+    private ServerCnxnFactory start(int port) throws IOException, InterruptedException
+    {
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+        ServerCnxnFactory started = ServerCnxnFactory.createFactory( new InetSocketAddress("127.0.0.1", port),
+                MAX_CLIENT_CONNECTIONS );
+        started.startup(server);
+        return started;
+    }
+
+    /**
+     * Stop the server and start it again on the same port and data, clients see a disconnect and sessions live on
+     *  if they reconnect within their timeout
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void restart() throws IOException, InterruptedException
+    {
+        int port = getPort();
+        factory.shutdown();
+        factory = start(port);
+    }
+
+    public int getPort()
+    {
+        return factory.getLocalPort();
+    }
+
+    /**
+     * @return how many clients are connected
+     */
+    public int getConnectionCount()
+    {
+        return factory.getNumAliveConnections();
+    }
+
+    /**
+     * @return the connection string for the server
+     */
+    public String getConnectString()
+    {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Open a client and wait for it to connect
+     *
+     * @return a connected client
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ZooKeeper connect() throws IOException, InterruptedException
+    {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper(getConnectString(), 10000, event ->
+        {
+            if ( event.getState() == org.apache.zookeeper.Watcher.Event.KeeperState.SyncConnected ) {
+                connected.countDown();
+            }
+        });
+        if ( ! connected.await(10, TimeUnit.SECONDS) ) {
+            zk.close();
+            throw new IOException("Timed out connecting to " + getConnectString());
+        }
+        return zk;
+    }
+
+    @Override
+    public void close()
+    {
+        factory.shutdown();
+        deleteRecursively(dataDir);
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children )
+            {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
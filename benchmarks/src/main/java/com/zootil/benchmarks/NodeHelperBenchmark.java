@@ -0,0 +1,214 @@
+package com.zootil.benchmarks;
+
+import com.zootil.util.NodeHelper;
+import com.zootil.util.SubtreeDeleter;
+import com.zootil.util.TreeWalker;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NodeHelper's create, delete and tree dump against an in-process server, next to the pipelined/batched versions, over
+ *  a few tree shapes of roughly a thousand nodes each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeHelperBenchmark
+{
+    private static final String ROOT = "/bench";
+
+    public enum Shape
+    {
+        /** one parent with a thousand children */
+        WIDE(1000, 1),
+        /** ten children a level, three levels */
+        BALANCED(10, 3),
+        /** binary tree nine levels down */
+        DEEP(2, 9);
+
+        final int fanout;
+        final int depth;
+
+        Shape(int fanout, int depth)
+        {
+            this.fanout = fanout;
+            this.depth = depth;
+        }
+    }
+
+    @Param({"WIDE", "BALANCED", "DEEP"})
+    public Shape shape;
+
+    @Param({"6"})
+    public int pathDepth;
+
+    private EmbeddedZooKeeper server;
+    private ZooKeeper zk;
+    private List<String> leaves;
+    private String treeRoot;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, InterruptedException, KeeperException
+    {
+        server = new EmbeddedZooKeeper();
+        zk = server.connect();
+        NodeHelper.createFullPath(zk, ROOT);
+
+        treeRoot = ROOT + "/tree";
+        leaves = new ArrayList<>();
+        addLeaves(treeRoot, 0);
+        NodeHelper.createFullPaths(zk, leaves);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException
+    {
+        zk.close();
+        server.close();
+    }
+
+    private void addLeaves(String parent, int level)
+    {
+        if ( level == shape.depth ) {
+            leaves.add(parent);
+            return;
+        }
+        for ( int i = 0; i < shape.fanout; i++ )
+        {
+            addLeaves(parent + "/n" + i, level + 1);
+        }
+    }
+
+    /**
+     * A fresh path each time under its own top level node so nothing along it exists yet
+     */
+    private String nextPath()
+    {
+        StringBuilder path = new StringBuilder(ROOT).append("/create").append(counter++);
+        for ( int i = 1; i < pathDepth; i++ )
+        {
+            path.append("/level").append(i);
+        }
+        return path.toString();
+    }
+
+    @Benchmark
+    public String createFullPath() throws KeeperException, InterruptedException
+    {
+        return NodeHelper.createFullPath(zk, nextPath());
+    }
+
+    @Benchmark
+    public int createFullPathsPipelined() throws KeeperException, InterruptedException
+    {
+        List<String> path = new ArrayList<>(1);
+        path.add( nextPath() );
+        return NodeHelper.createFullPaths(zk, path);
+    }
+
+    @Benchmark
+    public String createFullPathExisting() throws KeeperException, InterruptedException
+    {
+        return NodeHelper.createFullPath(zk, leaves.get(0));
+    }
+
+    @Benchmark
+    public int createShapePipelined(FreshShape fresh) throws KeeperException, InterruptedException
+    {
+        return NodeHelper.createFullPaths(zk, fresh.leaves);
+    }
+
+    @Benchmark
+    public int getTreeAsString() throws KeeperException, InterruptedException
+    {
+        return NodeHelper.getTreeAsString(zk, treeRoot).length();
+    }
+
+    @Benchmark
+    public long treeWalker() throws IOException, KeeperException, InterruptedException
+    {
+        return new TreeWalker(zk).walk(treeRoot, new StringBuilder());
+    }
+
+    @Benchmark
+    public boolean deletePathAndChildren(CopyState copy) throws KeeperException, InterruptedException
+    {
+        return NodeHelper.deletePathAndChildren(zk, copy.root);
+    }
+
+    @Benchmark
+    public int subtreeDeleter(CopyState copy) throws KeeperException, InterruptedException
+    {
+        return new SubtreeDeleter(zk).deletePathAndChildren(copy.root).getNodesDeleted();
+    }
+
+    /**
+     * The leaves of the tree shape moved under a fresh root
+     */
+    private List<String> relocate(String root)
+    {
+        List<String> relocated = new ArrayList<>( leaves.size() );
+        for ( String leaf : leaves )
+        {
+            relocated.add( root + leaf.substring( treeRoot.length() ) );
+        }
+        return relocated;
+    }
+
+    /**
+     * Paths for the tree shape under a root that doesn't exist yet, for the benchmarks that build the tree
+     */
+    @State(Scope.Thread)
+    public static class FreshShape
+    {
+        String root;
+        List<String> leaves;
+        private long copies;
+
+        @Setup(Level.Invocation)
+        public void prepare(NodeHelperBenchmark benchmark)
+        {
+            root = ROOT + "/fresh" + copies++;
+            leaves = benchmark.relocate(root);
+        }
+
+        @TearDown(Level.Invocation)
+        public void clear(NodeHelperBenchmark benchmark) throws KeeperException, InterruptedException
+        {
+            new SubtreeDeleter(benchmark.zk).deletePathAndChildren(root);
+        }
+    }
+
+    /**
+     * A copy of the tree shape under a fresh root for every invocation, for the benchmarks that consume the tree
+     */
+    @State(Scope.Thread)
+    public static class CopyState
+    {
+        String root;
+        private long copies;
+
+        @Setup(Level.Invocation)
+        public void copy(NodeHelperBenchmark benchmark) throws KeeperException, InterruptedException
+        {
+            root = ROOT + "/copy" + copies++;
+            NodeHelper.createFullPaths(benchmark.zk, benchmark.relocate(root));
+        }
+
+        @TearDown(Level.Invocation)
+        public void clear(NodeHelperBenchmark benchmark) throws KeeperException, InterruptedException
+        {
+            new SubtreeDeleter(benchmark.zk).deletePathAndChildren(root);
+        }
+    }
+}
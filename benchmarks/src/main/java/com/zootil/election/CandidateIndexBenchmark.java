@@ -0,0 +1,136 @@
+package com.zootil.election;
+
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of working out our place in line from a getChildren listing, the old HashMap/TreeSet rebuild against the
+ *  CandidateIndex, when it has to rebuild, when one candidate joins at the back or the leader leaves, and when the
+ *  cversion says nothing changed.
+ *
+ * Lives in com.zootil.election to reach the package private index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CandidateIndexBenchmark
+{
+    @Param({"100", "1000", "10000"})
+    public int candidates;
+
+    private List<String> children;
+    private int ourId;
+    private Stat stat;
+    private CandidateIndex index;
+
+    @Setup
+    public void setup()
+    {
+        children = new ArrayList<>(candidates);
+        for ( int i = 0; i < candidates; i++ )
+        {
+            children.add( String.format("host%d_%d_%010d", i % 50, 1000 + i, i) );
+        }
+        // ZK makes no promise on the order of children
+        Collections.shuffle( children, new Random(42) );
+
+        // somewhere in the back half of the line
+        ourId = candidates * 3 / 4;
+        stat = new Stat();
+        index = new CandidateIndex();
+        index.refresh(children, stat);
+    }
+
+    @Benchmark
+    public String legacyHashMapTreeSet()
+    {
+        HashMap<Integer, String> sequenceToPath = new HashMap<>();
+        for ( String child : children )
+        {
+            sequenceToPath.put( Integer.parseInt(child.substring( child.lastIndexOf("_") + 1 )), child );
+        }
+        TreeSet<Integer> set = new TreeSet<>( sequenceToPath.keySet() );
+        return set.first() == ourId ? null : sequenceToPath.get( set.lower(ourId) );
+    }
+
+    @Benchmark
+    public String indexChildrenChanged()
+    {
+        // a new election node forces a rebuild
+        stat.setCzxid( stat.getCzxid() + 1 );
+        stat.setCversion( stat.getCversion() + 1 );
+        index.refresh(children, stat);
+        int rank = index.rankOf(ourId);
+        return rank == 0 ? null : index.nameAt(rank - 1);
+    }
+
+    /**
+     * The line before and after one change, the index is put back to before ahead of each call so every call sees
+     *  the same change
+     */
+    @State(Scope.Thread)
+    public static class Churn
+    {
+        List<String> before;
+        List<String> joined;
+        List<String> left;
+        CandidateIndex index;
+        Stat stat;
+
+        @Setup(Level.Trial)
+        public void setup(CandidateIndexBenchmark benchmark)
+        {
+            before = benchmark.children;
+            joined = new ArrayList<>(before);
+            joined.add( String.format("host0_999_%010d", benchmark.candidates) );
+            Collections.shuffle( joined, new Random(43) );
+            left = new ArrayList<>(before);
+            left.remove( String.format("host0_1000_%010d", 0) );
+            stat = new Stat();
+            index = new CandidateIndex();
+        }
+
+        @Setup(Level.Invocation)
+        public void reset()
+        {
+            stat.setCversion( stat.getCversion() + 1 );
+            index.refresh(before, stat);
+            stat.setCversion( stat.getCversion() + 1 );
+        }
+    }
+
+    @Benchmark
+    public String indexChildJoined(Churn churn)
+    {
+        churn.index.refresh(churn.joined, churn.stat);
+        int rank = churn.index.rankOf(ourId);
+        return rank == 0 ? null : churn.index.nameAt(rank - 1);
+    }
+
+    @Benchmark
+    public String indexChildLeft(Churn churn)
+    {
+        churn.index.refresh(churn.left, churn.stat);
+        int rank = churn.index.rankOf(ourId);
+        return rank == 0 ? null : churn.index.nameAt(rank - 1);
+    }
+
+    @Benchmark
+    public String indexChildrenUnchanged()
+    {
+        index.refresh(children, stat);
+        int rank = index.rankOf(ourId);
+        return rank == 0 ? null : index.nameAt(rank - 1);
+    }
+}
@@ -0,0 +1,177 @@
+package com.zootil.election;
+
+import com.zootil.benchmarks.EmbeddedZooKeeper;
+import com.zootil.util.NodeHelper;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ElectionWatcher against an in-process server. The other candidates are plain ephemeral sequential nodes from a
+ *  second session, every ElectionWatcher in one JVM would otherwise share the same host_pid identity.
+ *
+ * An election failing fails the benchmark rather than being recorded as a sample.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ElectionBenchmark
+{
+    private static final String APP = "bench";
+    private static final String ELECTION_PATH = "/" + APP + "/" + ElectionWatcher.DEFAULT_ELECTION_NODE;
+
+    private EmbeddedZooKeeper server;
+    private ElectionManager manager;
+    // the first election to fail, the next invocation throws it
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final IElectable electable = new IElectable()
+    {
+        @Override
+        public void leadershipChanged(boolean amILeader)
+        {
+        }
+
+        @Override
+        public void terminatingEventOcurred(Exception e)
+        {
+            failure.compareAndSet(null, e);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, InterruptedException, KeeperException
+    {
+        server = new EmbeddedZooKeeper();
+        manager = new ElectionManager( server.getConnectString() );
+        NodeHelper.createFullPath( manager.getZooKeeper(), ELECTION_PATH );
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException
+    {
+        manager.close();
+        server.close();
+    }
+
+    private static void addCandidates(ZooKeeper zk, int count) throws KeeperException, InterruptedException
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            zk.create( ELECTION_PATH + "/candidate_" + i + "_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL );
+        }
+    }
+
+    /**
+     * Joining, and so ordering against, an election as the number of candidates ahead of us grows
+     */
+    @State(Scope.Benchmark)
+    public static class Candidates
+    {
+        @Param({"10", "1000", "10000"})
+        public int candidates;
+
+        ZooKeeper others;
+
+        @Setup(Level.Trial)
+        public void addOthers(ElectionBenchmark benchmark) throws IOException, InterruptedException, KeeperException
+        {
+            others = benchmark.server.connect();
+            addCandidates(others, candidates);
+        }
+
+        @TearDown(Level.Trial)
+        public void removeOthers() throws InterruptedException
+        {
+            others.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public MembershipSnapshot registerAndOrder(Candidates candidates)
+            throws IOException, KeeperException, InterruptedException
+    {
+        ElectionWatcher watcher = manager.register(APP, electable);
+        MembershipSnapshot membership = watcher.getMembership();
+        manager.unregister(watcher);
+        if ( failure.get() != null ) {
+            throw new IllegalStateException("An election failed", failure.get());
+        }
+        return membership;
+    }
+
+    /**
+     * A leader session with us next in line, set up fresh for every failover
+     */
+    @State(Scope.Thread)
+    public static class Failover
+    {
+        ZooKeeper leader;
+        ElectionWatcher watcher;
+        // counted down when we take over or the election fails
+        CountDownLatch tookOver;
+        volatile Exception failure;
+
+        @Setup(Level.Invocation)
+        public void electOther(ElectionBenchmark benchmark) throws IOException, InterruptedException, KeeperException
+        {
+            leader = benchmark.server.connect();
+            addCandidates(leader, 1);
+
+            tookOver = new CountDownLatch(1);
+            failure = null;
+            watcher = benchmark.manager.register(APP, new IElectable()
+            {
+                @Override
+                public void leadershipChanged(boolean amILeader)
+                {
+                    if ( amILeader ) {
+                        tookOver.countDown();
+                    }
+                }
+
+                @Override
+                public void terminatingEventOcurred(Exception e)
+                {
+                    failure = e;
+                    tookOver.countDown();
+                }
+            });
+        }
+
+        @TearDown(Level.Invocation)
+        public void leave(ElectionBenchmark benchmark) throws KeeperException, InterruptedException
+        {
+            benchmark.manager.unregister(watcher);
+        }
+    }
+
+    /**
+     * From the leader's session going away to our leadershipChanged(true)
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 50)
+    public void leaderDeathToTakeover(Failover failover) throws InterruptedException
+    {
+        failover.leader.close();
+        if ( ! failover.tookOver.await(30, TimeUnit.SECONDS) ) {
+            throw new IllegalStateException("No takeover within 30s");
+        }
+        if ( failover.failure != null ) {
+            throw new IllegalStateException("The election failed", failover.failure);
+        }
+    }
+}
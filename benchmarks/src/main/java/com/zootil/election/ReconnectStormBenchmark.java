@@ -0,0 +1,168 @@
+package com.zootil.election;
+
+import com.zootil.benchmarks.EmbeddedZooKeeper;
+import com.zootil.metrics.ZooKeeperMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The server restarting under a line of candidates, each on its own session as it would be in its own process, so
+ *  every one of them reconnects at once. Reports the time for the whole line to settle again and, through the
+ *  auxiliary counters, the ZK requests that took per restart. A candidate that reconnects to find its place in line
+ *  intact checks with two exists, ordering again from scratch would be a getChildren of the whole line each.
+ *
+ * A candidate's election failing, or the line not settling, fails the benchmark rather than being recorded as a
+ *  sample.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ReconnectStormBenchmark
+{
+    private static final String APP = "storm";
+
+    @Param({"50", "200"})
+    public int candidates;
+
+    // the first election to fail, the restart it happened in throws it
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final IElectable electable = new IElectable()
+    {
+        @Override
+        public void leadershipChanged(boolean amILeader)
+        {
+        }
+
+        @Override
+        public void terminatingEventOcurred(Exception e)
+        {
+            failure.compareAndSet(null, e);
+        }
+    };
+
+    private EmbeddedZooKeeper server;
+    private final List<ElectionManager> managers = new ArrayList<>();
+    private final List<ElectionWatcher> watchers = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void startCandidates() throws IOException, InterruptedException, ExecutionException
+    {
+        server = new EmbeddedZooKeeper();
+        for ( int i = 0; i < candidates; i++ )
+        {
+            String identifier = "c" + i;
+            ElectionManager manager = new ElectionManager( server.getConnectString() );
+            managers.add(manager);
+            // one at a time so the election path is in place before the crowd arrives
+            watchers.add( ElectionWatcher.builder(APP)
+                    .manager(manager)
+                    .identifierGenerator( () -> identifier )
+                    .electable(electable)
+                    .start()
+                    .get() );
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCandidates() throws InterruptedException
+    {
+        for ( ElectionManager manager : managers )
+        {
+            manager.close();
+        }
+        server.close();
+    }
+
+    /**
+     * ZK requests made per restart, by kind
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Requests
+    {
+        public long getChildren;
+        public long exists;
+        public long total;
+        public long reordersSkipped;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            getChildren = 0;
+            exists = 0;
+            total = 0;
+            reordersSkipped = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public void restartToSettled(Requests requests) throws IOException, InterruptedException
+    {
+        ZooKeeperMetrics metrics = ZooKeeperMetrics.getDefault();
+        long disconnects = metrics.getCount(ZooKeeperMetrics.Counter.DISCONNECT);
+        long getChildren = count(metrics, ZooKeeperMetrics.Operation.GET_CHILDREN);
+        long exists = count(metrics, ZooKeeperMetrics.Operation.EXISTS);
+        long total = totalRequests(metrics);
+        long skipped = metrics.getCount(ZooKeeperMetrics.Counter.REORDER_SKIPPED);
+
+        server.restart();
+        // every session has to notice it was cut off before settled means anything
+        while ( metrics.getCount(ZooKeeperMetrics.Counter.DISCONNECT) - disconnects < candidates )
+        {
+            Thread.sleep(1);
+        }
+        awaitSettled();
+
+        requests.getChildren += count(metrics, ZooKeeperMetrics.Operation.GET_CHILDREN) - getChildren;
+        requests.exists += count(metrics, ZooKeeperMetrics.Operation.EXISTS) - exists;
+        requests.total += totalRequests(metrics) - total;
+        requests.reordersSkipped += metrics.getCount(ZooKeeperMetrics.Counter.REORDER_SKIPPED) - skipped;
+    }
+
+    private void awaitSettled() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while ( System.nanoTime() < deadline )
+        {
+            boolean settled = true;
+            for ( ElectionWatcher watcher : watchers )
+            {
+                ElectionWatcher.State state = watcher.getState();
+                // a failed candidate never settles, no sense waiting out the deadline for it
+                if ( state == ElectionWatcher.State.FAILED || failure.get() != null ) {
+                    throw new IllegalStateException("An election failed", failure.get());
+                }
+                settled &= state == ElectionWatcher.State.LEADING || state == ElectionWatcher.State.FOLLOWING;
+            }
+            if ( settled ) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+        throw new IllegalStateException("The line didn't settle within 30s");
+    }
+
+    private static long count(ZooKeeperMetrics metrics, ZooKeeperMetrics.Operation operation)
+    {
+        return metrics.getOperationHistogram(operation).getCount();
+    }
+
+    private static long totalRequests(ZooKeeperMetrics metrics)
+    {
+        long total = 0;
+        for ( ZooKeeperMetrics.Operation operation : ZooKeeperMetrics.Operation.values() )
+        {
+            total += count(metrics, operation);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,459 @@
+package com.zootil;
+
+import com.zootil.election.CandidateIndex;
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.NodeHelper;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A mutex shared by every process that uses the same lock path, built on the same ordering as an election: each
+ *  process queues an ephemeral sequential node under the lock path and watches only the node directly ahead of it,
+ *  the lowest sequence holds the lock.
+ *
+ * Threads in this process queue on a fair local lock first and only the thread at the head of the local queue has a
+ *  node in ZK, so however many threads contend there's at most one node and one watch per process. When the holder
+ *  unlocks with threads still waiting locally the lock is handed straight to the next of them without going back to
+ *  ZK, as long as no other process has queued up since we got the lock. Once one has, the node is deleted and the
+ *  next local thread queues again behind it, so a busy process can't starve the others.
+ *
+ * Locking is reentrant, each lock needs a matching unlock. The lock lives as long as our node does, if the session
+ *  expires while a thread holds it someone else can take it so check isHeld before doing anything you can't undo.
+ *  The next local thread isn't handed a lock that went with the session, it queues again.
+ *
+ * Pass a supplier such as ElectionManager::getZooKeeper to share a session that gets rebuilt after an expiry.
+ *  lock and tryLock block, so don't call them from a watcher or callback.
+ */
+public class DistributedLock
+{
+    private static final String NODE_PREFIX = "lock_";
+
+    // how long to wait before trying again when the connection drops mid acquire
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    // how many times to try deleting our node when giving up on the lock before leaving it for later
+    private static final int MAX_CLEANUP_ATTEMPTS = 3;
+
+    private final Supplier<ZooKeeper> zooKeeper;
+    private final String lockPath;
+    // a node of ours has this in its name, so we can find one a create that lost its connection may have made
+    private final String nodePrefix;
+    private final ZooKeeperMetrics metrics = ZooKeeperMetrics.getDefault();
+    private final ReentrantLock local = new ReentrantLock(true);
+    // guarded by local, our node while the lock is held or being acquired, it survives local handoffs
+    private String nodePath;
+    // guarded by local, the session our node was created on, a handoff is only good while that session lives
+    private long nodeSession;
+    // a node we failed to delete, cleared out before we queue again
+    private String abandonedPath;
+    // another process has queued since we got the lock, set from the client's event thread
+    private volatile boolean contended;
+    // bumped whenever we take the lock at the ZK level, stops a late watch from marking a later hold contended
+    private volatile int holds;
+    // the session behind our node expired while we held the lock, set from the client's event thread
+    private volatile boolean expired;
+    // guarded by local, everyone queued under the lock path in sequence order, kept between listings
+    private final CandidateIndex waiters = new CandidateIndex();
+    // the hold the last children watch was set for, a watch set while we waited doesn't mark the hold contended
+    private volatile int watchedHold;
+    // the node directly ahead of us and the latch its watch counts down
+    private volatile String predecessorPath;
+    private volatile CountDownLatch predecessorGone;
+    // one watcher each rather than one per pass round the queue, ZK keeps a single registration for the same watcher
+    private final Watcher childrenWatcher = this::childrenChanged;
+    private final Watcher predecessorWatcher = this::predecessorChanged;
+
+    /**
+     * @param zooKeeper the session to use
+     * @param lockPath the node the lock queues under, created if it's missing
+     */
+    public DistributedLock(ZooKeeper zooKeeper, String lockPath)
+    {
+        this( () -> zooKeeper, lockPath );
+    }
+
+    /**
+     * @param zooKeeper hands out the current session, i.e. ElectionManager::getZooKeeper
+     * @param lockPath the node the lock queues under, created if it's missing
+     */
+    public DistributedLock(Supplier<ZooKeeper> zooKeeper, String lockPath)
+    {
+        this.zooKeeper = zooKeeper;
+        this.lockPath = lockPath;
+        this.nodePrefix = NODE_PREFIX + UUID.randomUUID().toString().replace("-", "") + "_";
+    }
+
+    /**
+     * Wait as long as it takes for the lock
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void lock() throws KeeperException, InterruptedException
+    {
+        try {
+            local.lockInterruptibly();
+        }
+        catch ( InterruptedException ex ) {
+            abandonHandoff();
+            throw ex;
+        }
+        acquire(Long.MAX_VALUE);
+    }
+
+    /**
+     * Wait a while for the lock
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of timeout
+     * @return false if the timeout passed first, we don't hold the lock
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean locked;
+        try {
+            locked = local.tryLock(timeout, unit);
+        }
+        catch ( InterruptedException ex ) {
+            abandonHandoff();
+            throw ex;
+        }
+        if ( ! locked ) {
+            abandonHandoff();
+            return false;
+        }
+        return acquire(deadline);
+    }
+
+    /**
+     * The holder may have kept our node to hand the lock to us just as we gave up waiting, make sure it isn't left
+     *  with no one in this process holding it while other processes wait behind it
+     */
+    private void abandonHandoff() throws InterruptedException
+    {
+        if ( local.tryLock() ) {
+            try {
+                if ( expired ) {
+                    nodePath = null;
+                }
+                else if ( ! local.hasQueuedThreads() || contended ) {
+                    deleteNodeQuietly();
+                }
+            }
+            finally {
+                local.unlock();
+            }
+        }
+    }
+
+    /**
+     * Release the lock, or one hold of it if the current thread locked it more than once
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void unlock() throws KeeperException, InterruptedException
+    {
+        if ( ! local.isHeldByCurrentThread() ) {
+            throw new IllegalMonitorStateException(String.format("The current thread doesn't hold %s", lockPath));
+        }
+        if ( local.getHoldCount() > 1 ) {
+            local.unlock();
+            return;
+        }
+        release();
+    }
+
+    /**
+     * @return true if the current thread holds the lock and our node is still there as far as the client knows
+     */
+    public boolean isHeld()
+    {
+        return local.isHeldByCurrentThread() && nodePath != null && zooKeeper.get().getState().isAlive();
+    }
+
+    /**
+     * @return how many threads in this process are waiting on the lock
+     */
+    public int getQueueLength()
+    {
+        return local.getQueueLength();
+    }
+
+    /**
+     * Take the lock at the ZK level unless a local handoff means we already have it, called holding local once
+     *
+     * @param deadline System.nanoTime() to give up at, Long.MAX_VALUE to wait forever
+     * @return true if we have the lock, otherwise local has been let go
+     */
+    private boolean acquire(long deadline) throws KeeperException, InterruptedException
+    {
+        if ( local.getHoldCount() > 1 ) {
+            return true;
+        }
+
+        boolean acquired = false;
+        try {
+            // handed over by the last local holder and our node is still there, or queue for it
+            acquired = (nodePath != null && stillHeld()) || queue(deadline);
+            return acquired;
+        }
+        finally {
+            if ( ! acquired ) {
+                try {
+                    deleteNodeQuietly();
+                }
+                finally {
+                    local.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the node handed over by the last local holder still holds the lock. It goes with the session, and with it
+     *  the lock, without any child watch firing, so look for it on the session it was created on.
+     *
+     * @return true if the lock is ours, otherwise nodePath has been cleared or left for queue to check again
+     */
+    private boolean stillHeld() throws InterruptedException
+    {
+        ZooKeeper zk = zooKeeper.get();
+        if ( expired || zk.getSessionId() != nodeSession || ! zk.getState().isAlive() ) {
+            nodePath = null;
+            return false;
+        }
+
+        try {
+            Stat stat = exists(zk, nodePath, null);
+            if ( stat != null && stat.getEphemeralOwner() == nodeSession ) {
+                return true;
+            }
+            nodePath = null;
+        }
+        catch ( KeeperException ex ) {
+            // can't tell, queue checks the node is still in line and waits out the connection
+        }
+        return false;
+    }
+
+    /**
+     * Queue our node and wait for everything ahead of it to go
+     */
+    private boolean queue(long deadline) throws KeeperException, InterruptedException
+    {
+        ZooKeeper zk = null;
+        while ( true )
+        {
+            try {
+                zk = zooKeeper.get();
+                if ( abandonedPath != null ) {
+                    delete(abandonedPath);
+                    abandonedPath = null;
+                }
+                if ( nodePath == null ) {
+                    nodePath = createNode(zk);
+                    nodeSession = zk.getSessionId();
+                }
+
+                final int hold = holds + 1;
+                watchedHold = hold;
+                Stat stat = new Stat();
+                List<String> children = getChildren(zk, childrenWatcher, stat);
+                waiters.refresh(children, stat);
+
+                int rank = waiters.rankOf( NodeHelper.parseSequence(nodePath) );
+                if ( rank < 0 ) {
+                    // our node went with an expired session, queue again at the back
+                    nodePath = null;
+                    continue;
+                }
+                if ( rank == 0 ) {
+                    contended = waiters.size() > 1;
+                    expired = false;
+                    holds = hold;
+                    return true;
+                }
+
+                // only watch the node directly ahead, no herd when the lock changes hands
+                CountDownLatch gone = new CountDownLatch(1);
+                String predecessor = lockPath + "/" + waiters.nameAt(rank - 1);
+                predecessorGone = gone;
+                predecessorPath = predecessor;
+                if ( exists(zk, predecessor, predecessorWatcher) != null ) {
+                    long remaining = deadline - System.nanoTime();
+                    if ( deadline != Long.MAX_VALUE && remaining <= 0 ) {
+                        return false;
+                    }
+                    if ( deadline == Long.MAX_VALUE ) {
+                        gone.await();
+                    }
+                    else if ( ! gone.await(remaining, TimeUnit.NANOSECONDS) ) {
+                        return false;
+                    }
+                }
+            }
+            catch ( KeeperException.ConnectionLossException | KeeperException.SessionExpiredException ex ) {
+                if ( deadline != Long.MAX_VALUE && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF_MILLIS) > deadline ) {
+                    throw ex;
+                }
+                Thread.sleep(RETRY_BACKOFF_MILLIS);
+
+                if ( ex instanceof KeeperException.SessionExpiredException ) {
+                    // our node went with the session, nothing will come of waiting unless someone is building a new one
+                    nodePath = null;
+                    if ( zooKeeper.get() == zk ) {
+                        throw ex;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Someone queued behind us, or left, while we hold the lock, or the session went and took our node with it
+     */
+    private void childrenChanged(WatchedEvent event)
+    {
+        if ( holds != watchedHold ) {
+            return;
+        }
+        if ( event.getType() == Watcher.Event.EventType.NodeChildrenChanged ) {
+            contended = true;
+        }
+        // our node has gone and the lock with it, no handing it on to another local thread
+        else if ( event.getState() == Watcher.Event.KeeperState.Expired ) {
+            expired = true;
+        }
+    }
+
+    /**
+     * The node ahead of us went, or the connection changed, either way look at the queue again. A watch left on an
+     *  earlier predecessor is ignored unless it's about the connection.
+     */
+    private void predecessorChanged(WatchedEvent event)
+    {
+        CountDownLatch gone = predecessorGone;
+        if ( gone != null && (event.getType() == Watcher.Event.EventType.None || predecessorPath.equals(event.getPath())) ) {
+            gone.countDown();
+        }
+    }
+
+    /**
+     * Hand the lock to the next local thread if there is one and no other process is waiting, otherwise give it up
+     */
+    private void release() throws KeeperException, InterruptedException
+    {
+        try {
+            if ( expired ) {
+                // the node went with the session, there's nothing to hand on or delete
+                nodePath = null;
+            }
+            else if ( nodePath != null && ( ! local.hasQueuedThreads() || contended ) ) {
+                deleteNode();
+            }
+        }
+        finally {
+            local.unlock();
+        }
+    }
+
+    private String createNode(ZooKeeper zk) throws KeeperException, InterruptedException
+    {
+        NodeHelper.createFullPath(zk, lockPath);
+
+        try {
+            return metrics.timed( ZooKeeperMetrics.Operation.CREATE, () -> zk.create( lockPath + "/" + nodePrefix,
+                    new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL ) );
+        }
+        catch ( KeeperException.ConnectionLossException ex ) {
+            // the create may still have gone through, adopt the node rather than leave a ghost ahead of us
+            for ( String child : getChildren(zk, null, null) )
+            {
+                if ( child.startsWith(nodePrefix) ) {
+                    return lockPath + "/" + child;
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Delete our node, if that fails it's left for the next acquire to clear out
+     */
+    private void deleteNode() throws KeeperException, InterruptedException
+    {
+        String path = nodePath;
+        nodePath = null;
+        if ( path != null ) {
+            try {
+                delete(path);
+            }
+            catch ( KeeperException ex ) {
+                abandonedPath = path;
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Delete our node on the way out of a failed or abandoned acquire, trying again a few times if the connection is
+     *  down. If it still can't be deleted it's left for the next acquire to clear out, or the session to take with it,
+     *  rather than failing a caller who only wanted to give up.
+     */
+    private void deleteNodeQuietly() throws InterruptedException
+    {
+        for ( int attempt = 1; ; attempt++ )
+        {
+            try {
+                if ( nodePath != null ) {
+                    deleteNode();
+                }
+                else if ( abandonedPath != null ) {
+                    delete(abandonedPath);
+                    abandonedPath = null;
+                }
+                return;
+            }
+            catch ( KeeperException ex ) {
+                if ( attempt == MAX_CLEANUP_ATTEMPTS ) {
+                    return;
+                }
+            }
+            Thread.sleep(RETRY_BACKOFF_MILLIS);
+        }
+    }
+
+    private void delete(String path) throws KeeperException, InterruptedException
+    {
+        try {
+            metrics.timed( ZooKeeperMetrics.Operation.DELETE, () ->
+            {
+                zooKeeper.get().delete(path, -1);
+                return null;
+            });
+        }
+        catch ( KeeperException.NoNodeException ex ) {
+            // went with the session
+        }
+    }
+
+    private List<String> getChildren(ZooKeeper zk, Watcher watcher, Stat stat) throws KeeperException, InterruptedException
+    {
+        return metrics.timed( ZooKeeperMetrics.Operation.GET_CHILDREN, () -> zk.getChildren(lockPath, watcher, stat) );
+    }
+
+    private Stat exists(ZooKeeper zk, String path, Watcher watcher) throws KeeperException, InterruptedException
+    {
+        return metrics.timed( ZooKeeperMetrics.Operation.EXISTS, () -> zk.exists(path, watcher) );
+    }
+}
@@ -0,0 +1,69 @@
+package com.zootil;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which instance a request goes to from a ServiceRegistry snapshot. Implementations are called on every request
+ *  from any number of threads so they must be thread safe and should be lock free.
+ */
+public interface SelectionStrategy
+{
+    /**
+     * @param instances the live instances, never modified by the strategy
+     * @return the instance to use or null if there are none
+     */
+    ServiceRegistry.Instance select(ServiceRegistry.Instance[] instances);
+
+    /**
+     * @return a strategy that goes round the instances in turn
+     */
+    static SelectionStrategy roundRobin()
+    {
+        return new RoundRobin();
+    }
+
+    /**
+     * @return a strategy that picks two instances at random and uses the one with fewer requests in flight, see
+     *  ServiceRegistry.Instance.acquire
+     */
+    static SelectionStrategy powerOfTwoChoices()
+    {
+        return new PowerOfTwoChoices();
+    }
+
+    final class RoundRobin implements SelectionStrategy
+    {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public ServiceRegistry.Instance select(ServiceRegistry.Instance[] instances)
+        {
+            if ( instances.length == 0 ) {
+                return null;
+            }
+            // masking keeps it positive once the counter wraps
+            return instances[ (next.getAndIncrement() & Integer.MAX_VALUE) % instances.length ];
+        }
+    }
+
+    final class PowerOfTwoChoices implements SelectionStrategy
+    {
+        @Override
+        public ServiceRegistry.Instance select(ServiceRegistry.Instance[] instances)
+        {
+            if ( instances.length < 2 ) {
+                return instances.length == 0 ? null : instances[0];
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(instances.length);
+            // pick the second from the rest so the two are always different
+            int second = random.nextInt(instances.length - 1);
+            if ( second >= first ) {
+                second++;
+            }
+            return instances[first].getInFlight() <= instances[second].getInFlight() ? instances[first] : instances[second];
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.zootil;
+
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.NodeHelper;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the live instances of a service, each instance registers an ephemeral sequential node under
+ *  /[app]/instances holding its host and port, and clients keep an in-memory copy of the instances to route
+ *  requests with.
+ *
+ * The copy is kept up to date with a children watch and async reloads on the client's event thread, only the data of
+ *  instances that are new to us is fetched. Each reload builds a new array and swaps it into a volatile field so
+ *  getInstances and select never touch ZK, take a lock or allocate. Instances that stay registered keep the same
+ *  Instance object from one snapshot to the next, along with their in flight counts.
+ *
+ * The instance nodes live next to the election rather than in the election nodes themselves, an election node's
+ *  data is used for handing off leadership.
+ *
+ * Pass a supplier such as ElectionManager::getZooKeeper to share a session that gets rebuilt after an expiry, the
+ *  registry re-registers and reloads once the supplier hands back a live client. A registry given a plain ZooKeeper
+ *  has nothing to recover with, it stops at the expiry and tells the expired listener.
+ */
+public class ServiceRegistry implements Watcher, AutoCloseable
+{
+    public static final String DEFAULT_INSTANCES_NODE = "instances";
+
+    private static final byte PAYLOAD_VERSION = 1;
+    private static final Instance[] NO_INSTANCES = new Instance[0];
+
+    // backoff while waiting for a live session after an expiry
+    private static final long RECOVERY_BACKOFF_MILLIS = 100;
+    private static final long MAX_RECOVERY_BACKOFF_MILLIS = 5000;
+
+    /**
+     * A live instance of the service
+     */
+    public static final class Instance
+    {
+        private final String id;
+        private final String host;
+        private final int port;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Instance(String id, String host, int port)
+        {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @return the instance's node name, unique for as long as it stays registered
+         */
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getHost()
+        {
+            return host;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        /**
+         * Count a request as in flight to this instance, for power of two choices, pair it with release
+         */
+        public void acquire()
+        {
+            inFlight.incrementAndGet();
+        }
+
+        public void release()
+        {
+            inFlight.decrementAndGet();
+        }
+
+        /**
+         * @return how many requests this client has in flight to the instance
+         */
+        public int getInFlight()
+        {
+            return inFlight.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return host + ":" + port;
+        }
+    }
+
+    private final Supplier<ZooKeeper> zooKeeper;
+    // false when we were handed a single client, once that expires no live session will ever come back
+    private final boolean replaceable;
+    private final String instancesPath;
+    private final SelectionStrategy defaultStrategy;
+    private final ZooKeeperMetrics metrics = ZooKeeperMetrics.getDefault();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final ScheduledExecutorService recoveryExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "service-registry-recovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Instance[] instances = NO_INSTANCES;
+    // guarded by this, only touched on the event thread apart from the generation bump on close
+    private Map<String, Instance> byId = new HashMap<>();
+    private int generation;
+    private volatile boolean stale;
+    private volatile boolean closed;
+    private volatile boolean expired;
+    private volatile Runnable expiredListener;
+    private String host;
+    private int port;
+    private volatile String registeredPath;
+
+    /**
+     * @param zooKeeper the session to use
+     * @param app the app 'node' to build the registry under in ZK
+     */
+    public ServiceRegistry(ZooKeeper zooKeeper, String app)
+    {
+        this( () -> zooKeeper, false, app, DEFAULT_INSTANCES_NODE, SelectionStrategy.roundRobin() );
+    }
+
+    /**
+     * @param zooKeeper hands out the current session, i.e. ElectionManager::getZooKeeper
+     * @param app the app 'node' to build the registry under in ZK
+     * @param instancesNode the node under the app node the instances register under
+     * @param defaultStrategy how select() picks an instance
+     */
+    public ServiceRegistry(Supplier<ZooKeeper> zooKeeper, String app, String instancesNode, SelectionStrategy defaultStrategy)
+    {
+        this(zooKeeper, true, app, instancesNode, defaultStrategy);
+    }
+
+    private ServiceRegistry(Supplier<ZooKeeper> zooKeeper, boolean replaceable, String app, String instancesNode,
+                            SelectionStrategy defaultStrategy)
+    {
+        this.zooKeeper = zooKeeper;
+        this.replaceable = replaceable;
+        this.instancesPath = "/" + app + "/" + instancesNode;
+        this.defaultStrategy = defaultStrategy;
+        refresh();
+    }
+
+    /**
+     * Register this process as an instance of the service, it stays registered until close or the process goes
+     *
+     * @param host where clients should connect
+     * @param port where clients should connect
+     * @return the path of our instance node
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public synchronized String register(String host, int port) throws KeeperException, InterruptedException
+    {
+        if ( registeredPath != null ) {
+            throw new IllegalStateException(String.format("Already registered at %s", registeredPath));
+        }
+        this.host = host;
+        this.port = port;
+        registeredPath = createInstanceNode( zooKeeper.get() );
+        return registeredPath;
+    }
+
+    /**
+     * @return the live instances as of the last reload, shared so don't modify it
+     */
+    public Instance[] getInstances()
+    {
+        return instances;
+    }
+
+    /**
+     * @return an instance picked by the default strategy or null if there are none
+     */
+    public Instance select()
+    {
+        return defaultStrategy.select(instances);
+    }
+
+    /**
+     * @param strategy how to pick
+     * @return an instance or null if there are none
+     */
+    public Instance select(SelectionStrategy strategy)
+    {
+        return strategy.select(instances);
+    }
+
+    /**
+     * Wait for the first load of the instances to complete
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of timeout
+     * @return false if the timeout passed first
+     * @throws InterruptedException
+     */
+    public boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return loaded.await(timeout, unit);
+    }
+
+    /**
+     * @param listener run once if the session expires and there's no new one to recover with, the registry has stopped
+     *  and our instance node has gone, null for none
+     */
+    public void setExpiredListener(Runnable listener)
+    {
+        this.expiredListener = listener;
+    }
+
+    /**
+     * @return true if the session expired with no new one to recover with, the instances are frozen as of the expiry
+     */
+    public boolean isExpired()
+    {
+        return expired;
+    }
+
+    /**
+     * Stop tracking instances and remove our own instance node if we registered one, if interrupted the node is left
+     *  to go with the session and the interrupt is kept
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        recoveryExecutor.shutdownNow();
+        String path;
+        synchronized ( this ) {
+            path = registeredPath;
+            registeredPath = null;
+        }
+        if ( path != null ) {
+            try {
+                zooKeeper.get().delete(path, -1);
+            }
+            catch ( KeeperException ex ) {
+                // gone with the session or already deleted
+            }
+            catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * ZK callback hook, reload on any change to the instances, any other events are for the session
+     *
+     * @param watchedEvent the event ZK wants to pass on
+     */
+    @Override
+    public void process(WatchedEvent watchedEvent)
+    {
+        if ( closed ) {
+            return;
+        }
+
+        if ( watchedEvent.getType() != Event.EventType.None ) {
+            refresh();
+        }
+        else if ( watchedEvent.getState() == Event.KeeperState.Expired ) {
+            // the watch and our node went with the session, wait for a live one off the event thread
+            recoveryExecutor.execute( () -> recover(1) );
+        }
+        // a load that failed while we were disconnected left no watch behind, try again
+        else if ( watchedEvent.getState() == Event.KeeperState.SyncConnected && stale ) {
+            refresh();
+        }
+    }
+
+    private void refresh()
+    {
+        if ( ! closed ) {
+            zooKeeper.get().getChildren( instancesPath, this, this::childrenLoaded, System.nanoTime() );
+        }
+    }
+
+    private synchronized void childrenLoaded(int rc, String path, Object ctx, List<String> children)
+    {
+        metrics.operation( ZooKeeperMetrics.Operation.GET_CHILDREN, (Long) ctx, rc );
+        if ( closed ) {
+            return;
+        }
+
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if ( code == KeeperException.Code.NONODE ) {
+            // no one has registered yet, wait for the node to appear
+            stale = false;
+            zooKeeper.get().exists( instancesPath, this, this::rootChecked, System.nanoTime() );
+            publish( ++generation, new HashMap<>() );
+            return;
+        }
+        else if ( code != KeeperException.Code.OK ) {
+            stale = true;
+            return;
+        }
+        stale = false;
+
+        // keep the instances we already know, only the new ones need their data fetching
+        final int gen = ++generation;
+        final Map<String, Instance> next = new HashMap<>( children.size() * 2 );
+        List<String> added = new ArrayList<>();
+        for ( String child : children )
+        {
+            Instance known = byId.get(child);
+            if ( known != null ) {
+                next.put(child, known);
+            }
+            else {
+                added.add(child);
+            }
+        }
+        if ( added.isEmpty() ) {
+            publish(gen, next);
+            return;
+        }
+
+        final int[] waitingOn = { added.size() };
+        for ( String child : added )
+        {
+            final long start = System.nanoTime();
+            zooKeeper.get().getData( instancesPath + "/" + child, false, (rc2, dataPath, dataCtx, data, stat) ->
+            {
+                metrics.operation(ZooKeeperMetrics.Operation.GET_DATA, start, rc2);
+                synchronized ( this ) {
+                    // a NoNode means it went again already, the children watch will catch us up
+                    if ( rc2 == KeeperException.Code.OK.intValue() ) {
+                        Instance instance = decode(child, data);
+                        if ( instance != null ) {
+                            next.put(child, instance);
+                        }
+                    }
+                    else if ( rc2 != KeeperException.Code.NONODE.intValue() ) {
+                        // it's left out of this snapshot and not in byId, so the reload on reconnect fetches it again
+                        stale = true;
+                    }
+                    if ( --waitingOn[0] == 0 && gen == generation ) {
+                        publish(gen, next);
+                    }
+                }
+            }, null );
+        }
+    }
+
+    private void rootChecked(int rc, String path, Object ctx, Stat stat)
+    {
+        metrics.operation( ZooKeeperMetrics.Operation.EXISTS, (Long) ctx, rc );
+        if ( stat != null ) {
+            refresh();
+        }
+    }
+
+    /**
+     * Swap in a new snapshot, sorted by node name so every client sees the instances in registration order
+     */
+    private synchronized void publish(int gen, Map<String, Instance> next)
+    {
+        if ( gen != generation || closed ) {
+            return;
+        }
+        byId = next;
+        Instance[] snapshot = next.values().toArray( new Instance[next.size()] );
+        java.util.Arrays.sort( snapshot, (a, b) -> a.id.compareTo(b.id) );
+        instances = snapshot;
+        loaded.countDown();
+    }
+
+    /**
+     * Put our instance node back and reload once there's a live session, backing off with jitter while there isn't
+     */
+    private void recover(int attempt)
+    {
+        if ( closed ) {
+            return;
+        }
+
+        ZooKeeper zk = zooKeeper.get();
+        if ( ! replaceable && ! zk.getState().isAlive() ) {
+            expire();
+            return;
+        }
+        try {
+            if ( zk.getState().isAlive() ) {
+                String lost;
+                synchronized ( this ) {
+                    lost = registeredPath;
+                }
+                if ( lost != null ) {
+                    // created outside the monitor, reloads on the event thread need it while we wait on ZK
+                    String path = createInstanceNode(zk);
+                    boolean kept;
+                    synchronized ( this ) {
+                        kept = registeredPath == lost;
+                        if ( kept ) {
+                            registeredPath = path;
+                        }
+                    }
+                    // closed while we were creating it, nobody else knows the node is there
+                    if ( ! kept ) {
+                        deleteQuietly(zk, path);
+                    }
+                }
+                refresh();
+                return;
+            }
+        }
+        catch ( KeeperException ex ) {
+            // the session isn't usable yet, back off and try again
+        }
+        catch ( InterruptedException ex ) {
+            return;
+        }
+
+        long backoff = Math.min( MAX_RECOVERY_BACKOFF_MILLIS, RECOVERY_BACKOFF_MILLIS << Math.min(attempt - 1, 16) );
+        recoveryExecutor.schedule( () -> recover(attempt + 1), ThreadLocalRandom.current().nextLong(backoff + 1),
+                TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Give up for good, the only session we have expired
+     */
+    private void expire()
+    {
+        expired = true;
+        recoveryExecutor.shutdown();
+        Runnable listener = expiredListener;
+        if ( listener != null ) {
+            listener.run();
+        }
+    }
+
+    private void deleteQuietly(ZooKeeper zk, String path)
+    {
+        try {
+            zk.delete(path, -1);
+        }
+        catch ( KeeperException ex ) {
+            // already gone, or it goes with the session
+        }
+        catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String createInstanceNode(ZooKeeper zk) throws KeeperException, InterruptedException
+    {
+        NodeHelper.createFullPath(zk, instancesPath);
+
+        return metrics.timed( ZooKeeperMetrics.Operation.CREATE, () -> zk.create( instancesPath + "/"
+                + host.replace('/', '_') + "_" + port + "_", encode(host, port), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL ) );
+    }
+
+    /**
+     * The instance payload, a version byte then the host and port
+     */
+    static byte[] encode(String host, int port)
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( host.length() + 5 );
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PAYLOAD_VERSION);
+            out.writeUTF(host);
+            out.writeShort(port);
+            return bytes.toByteArray();
+        }
+        catch ( IOException ex ) {
+            // can't happen writing to memory
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @return the instance or null if the payload isn't one we understand
+     */
+    static Instance decode(String id, byte[] data)
+    {
+        try {
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream(data) );
+            if ( in.readByte() != PAYLOAD_VERSION ) {
+                return null;
+            }
+            return new Instance( id, in.readUTF(), in.readUnsignedShort() );
+        }
+        catch ( IOException ex ) {
+            // a payload we can't read, leave the instance out
+            return null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.zootil.election;
+
+import com.zootil.util.NodeHelper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted index of the candidates under an election node, sequence id to node name, kept across orderings. Works the
+ *  same for anything queued as sequential nodes under one parent, DistributedLock keeps its waiters in one.
+ *
+ * A listing whose cversion hasn't moved is skipped. Otherwise the change is applied to the sorted arrays in place,
+ *  ZK hands out sequence ids in increasing order under a node so anyone who joined since the last listing sorts after
+ *  everyone already indexed and is appended at the tail, and anyone missing from the listing is dropped by closing
+ *  the gap. A candidate joining costs a pass over the names to pick out the new ones and no sort of the whole line.
+ *  The whole index is only rebuilt the first time, after invalidate, or when the election node was recreated and its
+ *  sequence started again. Lookups are binary searches over the sorted ids.
+ *
+ * Not thread safe, the owner guards it.
+ */
+public class CandidateIndex
+{
+    private static final long INDEX_MASK = 0xFFFFFFFFL;
+    // never the czxid of a real node, forces the next refresh to rebuild
+    private static final long REBUILD = -1;
+
+    private int[] ids = new int[0];
+    private String[] names = new String[0];
+    // newcomers packed as sequence id and list position, for the rebuild everyone is
+    private long[] scratch = new long[0];
+    // the ids of listed candidates we already had, and which ranks they were found at
+    private int[] seen = new int[0];
+    private boolean[] present = new boolean[0];
+    private int size;
+    private int cversion = -1;
+    private long czxid = REBUILD;
+
+    /**
+     * Bring the index up to date with a fresh listing of the election node
+     *
+     * @param children the election node's children
+     * @param stat the election node's stat from the same listing
+     * @return false if the children hadn't changed since the last refresh and nothing was done
+     */
+    public boolean refresh(List<String> children, Stat stat)
+    {
+        if ( stat != null && stat.getCversion() == cversion && children.size() == size ) {
+            return false;
+        }
+
+        // a recreated election node starts its sequence again, so newcomers wouldn't sort after what we have
+        if ( stat == null || stat.getCzxid() != czxid || ! update(children) ) {
+            rebuild(children);
+        }
+        cversion = stat == null ? -1 : stat.getCversion();
+        czxid = stat == null ? REBUILD : stat.getCzxid();
+        return true;
+    }
+
+    /**
+     * Apply what changed since the last listing to the sorted arrays
+     *
+     * @return false if the listing has ids below our tail that we never indexed, it needs a rebuild
+     */
+    private boolean update(List<String> children)
+    {
+        int count = children.size();
+        int last = size == 0 ? -1 : ids[size - 1];
+        if ( scratch.length < count ) {
+            scratch = new long[ Math.max( count, scratch.length * 2 ) ];
+        }
+        if ( seen.length < size ) {
+            seen = new int[ids.length];
+            present = new boolean[ids.length];
+        }
+
+        int joined = 0;
+        int stayed = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            int id = NodeHelper.parseSequence( children.get(i) );
+            if ( id > last ) {
+                scratch[joined++] = ((long) id << 32) | i;
+            }
+            else if ( stayed == size ) {
+                return false;
+            }
+            else {
+                seen[stayed++] = id;
+            }
+        }
+
+        if ( stayed < size ) {
+            // someone left, find who is still here and close the gaps behind them
+            Arrays.fill( present, 0, size, false );
+            for ( int i = 0; i < stayed; i++ )
+            {
+                int rank = Arrays.binarySearch( ids, 0, size, seen[i] );
+                if ( rank < 0 ) {
+                    return false;
+                }
+                present[rank] = true;
+            }
+            int kept = 0;
+            for ( int rank = 0; rank < size; rank++ )
+            {
+                if ( present[rank] ) {
+                    ids[kept] = ids[rank];
+                    names[kept] = names[rank];
+                    kept++;
+                }
+            }
+            Arrays.fill( names, kept, size, null );
+            size = kept;
+        }
+
+        if ( joined > 0 ) {
+            // usually just the one, the listing is in no particular order so several still need sorting between them
+            Arrays.sort( scratch, 0, joined );
+            ensureCapacity(size + joined);
+            for ( int i = 0; i < joined; i++ )
+            {
+                ids[size] = (int) (scratch[i] >>> 32);
+                names[size] = children.get( (int) (scratch[i] & INDEX_MASK) );
+                size++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index the listing from scratch, packing each candidate's sequence id and its position in the child list into a
+     *  long and sorting those so there is no boxing
+     */
+    private void rebuild(List<String> children)
+    {
+        int count = children.size();
+        if ( scratch.length < count ) {
+            scratch = new long[ Math.max( count, scratch.length * 2 ) ];
+        }
+        ensureCapacity(count);
+
+        for ( int i = 0; i < count; i++ )
+        {
+            scratch[i] = ((long) NodeHelper.parseSequence( children.get(i) ) << 32) | i;
+        }
+        Arrays.sort( scratch, 0, count );
+
+        for ( int i = 0; i < count; i++ )
+        {
+            ids[i] = (int) (scratch[i] >>> 32);
+            names[i] = children.get( (int) (scratch[i] & INDEX_MASK) );
+        }
+        // let go of names that fell off the end
+        if ( size > count ) {
+            Arrays.fill( names, count, size, null );
+        }
+        size = count;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if ( ids.length < capacity ) {
+            int grown = Math.max( capacity, ids.length * 2 );
+            ids = Arrays.copyOf(ids, grown);
+            names = Arrays.copyOf(names, grown);
+        }
+    }
+
+    /**
+     * @param sequenceId a candidate's sequence id
+     * @return the candidate's position in line, 0 is the leader, or -1 if it isn't in the index
+     */
+    public int rankOf(int sequenceId)
+    {
+        int rank = Arrays.binarySearch( ids, 0, size, sequenceId );
+        return rank < 0 ? -1 : rank;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param rank a position in line
+     * @return the node name of the candidate at that position
+     */
+    public String nameAt(int rank)
+    {
+        return names[rank];
+    }
+
+    public int idAt(int rank)
+    {
+        return ids[rank];
+    }
+
+    /**
+     * Force the next refresh to rebuild, for when the session changed underneath us
+     */
+    public void invalidate()
+    {
+        cversion = -1;
+        czxid = REBUILD;
+    }
+}
@@ -0,0 +1,738 @@
+package com.zootil.election;
+
+import com.zootil.events.ElectionEvent;
+import com.zootil.events.ElectionEvents;
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.SerialExecutor;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs any number of elections over a single ZK session. Each ElectionWatcher would otherwise need its own client,
+ *  with its own session, heartbeats and IO/event threads.
+ *
+ * Watch events are routed to the election that set the watch through a table keyed by path, session state changes go
+ *  to every election. On session expiry the manager builds the new session in the background and re-registers every
+ *  election with the root path creates pipelined ahead of multi() batches of the election nodes, backing off with
+ *  jitter and trying again if the ensemble isn't reachable yet.
+ *
+ * A leader that gets disconnected keeps its leadership for a grace period, a fraction of the negotiated session
+ *  timeout, so a short blip doesn't cost a failover. The session can't have expired on the server side before the
+ *  grace period is up as long as the fraction stays comfortably under a third, the client only notices a dead
+ *  connection after two thirds of the timeout without hearing from the server.
+ *
+ * IElectable callbacks run on the callback executor, never on the client's event thread. By default that is a virtual
+ *  thread per callback when the JDK has them and a shared pool of daemon threads when it doesn't, either way each
+ *  election's callbacks are delivered one at a time in order.
+ *
+ * Request latencies, session events and election events are recorded into the manager's ZooKeeperMetrics, the process
+ *  wide default unless one is passed in. What the elections and the session are doing is published as typed events to
+ *  ElectionEvents.getDefault(), nothing is logged unless a sink such as Slf4jEventSink is added there.
+ */
+public class ElectionManager implements Watcher
+{
+    public static final int DEFAULT_SESSION_TIMEOUT = 5000;
+
+    /**
+     * By default a disconnected leader holds on for a quarter of the negotiated session timeout
+     */
+    public static final double DEFAULT_DISCONNECT_GRACE = 0.25;
+
+    /**
+     * The disconnect grace has to be under this, a third of the session timeout
+     */
+    public static final double MAX_DISCONNECT_GRACE = 1.0 / 3;
+
+    // how many election nodes to re-create per multi() after an expiry
+    private static final int REREGISTER_BATCH_SIZE = 500;
+
+    // backoff between attempts at putting the elections back after an expiry
+    private static final int MAX_RECOVERY_ATTEMPTS = 10;
+    private static final long RECOVERY_BACKOFF_MILLIS = 100;
+    private static final long MAX_RECOVERY_BACKOFF_MILLIS = 5000;
+
+    private static final Executor DEFAULT_CALLBACK_EXECUTOR = createDefaultCallbackExecutor();
+
+    private final String zooKeeperAddress;
+    private final int sessionTimeout;
+    private final Executor callbackExecutor;
+    private final ZooKeeperMetrics metrics;
+    private final ElectionEvents events = ElectionEvents.getDefault();
+    private final CopyOnWriteArrayList<ElectionWatcher> elections = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, ElectionWatcher> watchedPaths = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<LeaderView> leaderViews = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<PartitionedElection> partitionedElections = new CopyOnWriteArrayList<>();
+    private final ExecutorService recoveryExecutor = Executors.newSingleThreadExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "election-manager-recovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // kept apart from recovery so a slow recovery can never hold up a leader giving up on its grace period
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "election-manager-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ZooKeeper zooKeeperClient;
+    // set while a rebuilt session is being put back, its first connect is covered by re-registration
+    private volatile boolean recovering;
+    private volatile double disconnectGrace = DEFAULT_DISCONNECT_GRACE;
+
+    /**
+     * @param zookeeperConnectionString the comma separated list of ZK instances, i.e. server1:port,server2:port etc..
+     * @throws IOException
+     */
+    public ElectionManager(String zookeeperConnectionString) throws IOException
+    {
+        this(zookeeperConnectionString, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * @param zookeeperConnectionString the comma separated list of ZK instances, i.e. server1:port,server2:port etc..
+     * @param sessionTimeout the session timeout in ms to request from ZK
+     * @throws IOException
+     */
+    public ElectionManager(String zookeeperConnectionString, int sessionTimeout) throws IOException
+    {
+        this(zookeeperConnectionString, sessionTimeout, DEFAULT_CALLBACK_EXECUTOR);
+    }
+
+    /**
+     * @param zookeeperConnectionString the comma separated list of ZK instances, i.e. server1:port,server2:port etc..
+     * @param sessionTimeout the session timeout in ms to request from ZK
+     * @param callbackExecutor where to run the IElectable callbacks
+     * @throws IOException
+     */
+    public ElectionManager(String zookeeperConnectionString, int sessionTimeout, Executor callbackExecutor) throws IOException
+    {
+        this(zookeeperConnectionString, sessionTimeout, callbackExecutor, ZooKeeperMetrics.getDefault());
+    }
+
+    /**
+     * @param zookeeperConnectionString the comma separated list of ZK instances, i.e. server1:port,server2:port etc..
+     * @param sessionTimeout the session timeout in ms to request from ZK
+     * @param callbackExecutor where to run the IElectable callbacks
+     * @param metrics where to record request latencies and election events
+     * @throws IOException
+     */
+    public ElectionManager(String zookeeperConnectionString, int sessionTimeout, Executor callbackExecutor,
+                           ZooKeeperMetrics metrics) throws IOException
+    {
+        this.zooKeeperAddress = zookeeperConnectionString;
+        this.sessionTimeout = sessionTimeout;
+        this.callbackExecutor = callbackExecutor;
+        this.metrics = metrics;
+
+        events.publish(ElectionEvent.Type.CONNECTING, zookeeperConnectionString);
+        zooKeeperClient = new ZooKeeper(zookeeperConnectionString, sessionTimeout, this);
+    }
+
+    /**
+     * Join an election using the default node names
+     *
+     * Election root is assumed: /[app]/election
+     * Leader node is assumed: /[app]/currentLeader
+     *
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param electable the callback function to your service so it can be notified with leadership changes
+     * @return the registered election
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ElectionWatcher register(String app, IElectable electable)
+            throws KeeperException, InterruptedException, IOException
+    {
+        return register(ElectionWatcher.DEFAULT_ELECTION_NODE, ElectionWatcher.DEFAULT_LEADER_NODE, app, electable);
+    }
+
+    /**
+     * Join an election
+     *
+     * @param electionNode the root node where election nodes will be registered
+     * @param leaderNode the place where the leader registers itself as leader
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param electable the callback function to your service to notify in with the state of leadership or ZK events
+     * @return the registered election
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ElectionWatcher register(String electionNode, String leaderNode, String app, IElectable electable)
+            throws KeeperException, InterruptedException, IOException
+    {
+        return register(electionNode, leaderNode, app, electable, new byte[0]);
+    }
+
+    /**
+     * Join an election publishing a payload while leading
+     *
+     * @param electionNode the root node where election nodes will be registered
+     * @param leaderNode the place where the leader registers itself as leader
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param electable the callback function to your service to notify in with the state of leadership or ZK events
+     * @param leaderData what to publish in the leader node while this process leads, i.e. its host:port, keep it small
+     * @return the registered election
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ElectionWatcher register(String electionNode, String leaderNode, String app, IElectable electable, byte[] leaderData)
+            throws KeeperException, InterruptedException, IOException
+    {
+        return new ElectionWatcher(electionNode, leaderNode, app, this, electable, leaderData);
+    }
+
+    /**
+     * Join an election that spreads partitions of work over every candidate, using the default node names
+     *
+     * Election root is assumed: /[app]/election
+     * Leader node is assumed: /[app]/currentLeader
+     *
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param partitionCount how many partitions the work is split into, every candidate must use the same number
+     * @param electable the callback function to your service so it can be notified as partitions come and go
+     * @return the registered election
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public PartitionedElection registerPartitioned(String app, int partitionCount, IPartitionedElectable electable)
+            throws KeeperException, InterruptedException, IOException
+    {
+        return registerPartitioned(ElectionWatcher.DEFAULT_ELECTION_NODE, ElectionWatcher.DEFAULT_LEADER_NODE, app,
+                partitionCount, electable);
+    }
+
+    /**
+     * Join an election that spreads partitions of work over every candidate, see PartitionedElection
+     *
+     * @param electionNode the root node where election nodes will be registered
+     * @param leaderNode the place where the candidate first in line registers itself as leader
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param partitionCount how many partitions the work is split into, every candidate must use the same number
+     * @param electable the callback function to your service so it can be notified as partitions come and go
+     * @return the registered election
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public PartitionedElection registerPartitioned(String electionNode, String leaderNode, String app, int partitionCount,
+                                                   IPartitionedElectable electable)
+            throws KeeperException, InterruptedException, IOException
+    {
+        PartitionedElection election = new PartitionedElection(electionNode, leaderNode, app, this, partitionCount, electable);
+        partitionedElections.add(election);
+        return election;
+    }
+
+    /**
+     * Track the leader of an election without taking part in it, uses the default leader node /[app]/currentLeader
+     *
+     * @param app the app 'node' the election structure is under in ZK
+     * @return a new view, close it when you're done with it
+     */
+    public LeaderView createLeaderView(String app)
+    {
+        return createLeaderView(ElectionWatcher.DEFAULT_LEADER_NODE, app);
+    }
+
+    /**
+     * Track the leader of an election without taking part in it
+     *
+     * @param leaderNode the place where the leader registers itself as leader
+     * @param app the app 'node' the election structure is under in ZK
+     * @return a new view, close it when you're done with it
+     */
+    public LeaderView createLeaderView(String leaderNode, String app)
+    {
+        return addLeaderView("/" + app + "/" + leaderNode);
+    }
+
+    /**
+     * Leave an election, removes its election node and its leader node if it was leading
+     *
+     * @param election the election to leave
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void unregister(ElectionWatcher election) throws KeeperException, InterruptedException
+    {
+        if ( elections.remove(election) ) {
+            watchedPaths.values().removeIf( watcher -> watcher == election );
+            election.leave();
+        }
+    }
+
+    /**
+     * Leave a partitioned election, the service is told it has released its partitions first
+     *
+     * @param election the election to leave
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void unregister(PartitionedElection election) throws KeeperException, InterruptedException
+    {
+        if ( partitionedElections.remove(election) ) {
+            election.leave();
+        }
+    }
+
+    /**
+     * Leave an election handing leadership off gracefully. If we're leading, our successor is told first, we carry on
+     *  leading while it gets ready (it gets IRankedElectable.handoffStarted) and then leave as usual. Blocks for the
+     *  handoff so don't call it from a watcher or election callback.
+     *
+     * @param election the election to leave
+     * @param handoffMillis how long to keep leading once the successor has been told
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void unregister(ElectionWatcher election, long handoffMillis) throws KeeperException, InterruptedException
+    {
+        if ( elections.contains(election) && election.signalHandoff() ) {
+            Thread.sleep(handoffMillis);
+        }
+        unregister(election);
+    }
+
+    /**
+     * @return the session all the elections are sharing
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return zooKeeperClient;
+    }
+
+    Executor getCallbackExecutor()
+    {
+        return callbackExecutor;
+    }
+
+    /**
+     * @return a queue running callbacks one at a time, in order, on the callback executor, a callback throwing is
+     *  published as an ERROR
+     */
+    SerialExecutor newCallbackQueue()
+    {
+        return new SerialExecutor( callbackExecutor, ex -> events.publish(ElectionEvent.Type.ERROR, null, ElectionEvent.NO_VALUE, ex) );
+    }
+
+    /**
+     * @return where this manager's elections publish what they're doing, add a sink to hear about it
+     */
+    public ElectionEvents getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * @return where this manager's elections record their metrics
+     */
+    public ZooKeeperMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * How long a disconnected leader keeps leading before it steps down, as a fraction of the negotiated session
+     *  timeout. 0 steps down the moment the connection drops. Anything from a third upwards risks the session having
+     *  expired, and someone else having taken over, before we step down, so it's refused.
+     *
+     * @param fractionOfSessionTimeout from 0 up to but not including MAX_DISCONNECT_GRACE
+     */
+    public void setDisconnectGrace(double fractionOfSessionTimeout)
+    {
+        if ( ! (fractionOfSessionTimeout >= 0 && fractionOfSessionTimeout < MAX_DISCONNECT_GRACE) ) {
+            throw new IllegalArgumentException(String.format("The disconnect grace must be at least 0 and under %.3f",
+                    MAX_DISCONNECT_GRACE));
+        }
+        this.disconnectGrace = fractionOfSessionTimeout;
+    }
+
+    /**
+     * @return how long a disconnected leader keeps leading, in ms, based on the session timeout the ensemble gave us
+     */
+    public long getDisconnectGraceMillis()
+    {
+        return (long) (zooKeeperClient.getSessionTimeout() * disconnectGrace);
+    }
+
+    /**
+     * @return the number of elections registered
+     */
+    public int getElectionCount()
+    {
+        return elections.size();
+    }
+
+    /**
+     * Close the session, the election nodes go with it
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException
+    {
+        elections.clear();
+        watchedPaths.clear();
+        leaderViews.clear();
+        partitionedElections.clear();
+        recoveryExecutor.shutdownNow();
+        timer.shutdownNow();
+        zooKeeperClient.close();
+    }
+
+    /**
+     * Track an election so it gets session events, only one election may use a given election node
+     */
+    void add(ElectionWatcher election)
+    {
+        for ( ElectionWatcher existing : elections )
+        {
+            if ( existing.getElectionNodePath().equals( election.getElectionNodePath() ) ) {
+                throw new IllegalStateException(String.format("An election is already registered on %s",
+                        election.getElectionNodePath()));
+            }
+        }
+        elections.add(election);
+    }
+
+    LeaderView addLeaderView(String leaderNodeRootPath)
+    {
+        LeaderView view = new LeaderView(this, leaderNodeRootPath);
+        leaderViews.add(view);
+        return view;
+    }
+
+    void removeLeaderView(LeaderView view)
+    {
+        leaderViews.remove(view);
+    }
+
+    void remove(ElectionWatcher election)
+    {
+        elections.remove(election);
+        watchedPaths.values().removeIf( watcher -> watcher == election );
+    }
+
+    /**
+     * Route the next event for path to election, call before setting the watch so the event can't beat the entry
+     */
+    void watch(String path, ElectionWatcher election)
+    {
+        watchedPaths.put(path, election);
+    }
+
+    void unwatch(String path)
+    {
+        watchedPaths.remove(path);
+    }
+
+    void schedule(Runnable task, long delayMillis)
+    {
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * ZK callback hook
+     *
+     * @param watchedEvent the event ZK wants to pass on
+     */
+    @Override
+    public void process(WatchedEvent watchedEvent)
+    {
+        if ( watchedEvent.getType() != Event.EventType.None ) {
+            // watches are one shot so the entry goes once it fires
+            ElectionWatcher election = watchedPaths.remove( watchedEvent.getPath() );
+            if ( election != null ) {
+                election.process(watchedEvent);
+            }
+            return;
+        }
+
+        switch ( watchedEvent.getState() )
+        {
+            case SyncConnected:
+                // the elections on a rebuilt session are put back by reregister, not by reconnecting
+                if ( recovering ) {
+                    recovering = false;
+                    return;
+                }
+                break;
+            case Expired:
+                // the client is toast, rebuild it off the event thread once every leader has stepped down
+                events.publish(ElectionEvent.Type.EXPIRED, null, ElectionEvent.NO_VALUE, watchedEvent);
+                metrics.count(ZooKeeperMetrics.Counter.EXPIRY);
+                final long expiredAt = System.nanoTime();
+                for ( ElectionWatcher election : elections )
+                {
+                    election.process(watchedEvent);
+                }
+                recoveryExecutor.execute( () -> recoverSession(expiredAt) );
+                return;
+            case Disconnected:
+                metrics.count(ZooKeeperMetrics.Counter.DISCONNECT);
+                break;
+            case AuthFailed:
+                break;
+            default:
+                return;
+        }
+
+        for ( ElectionWatcher election : elections )
+        {
+            election.process(watchedEvent);
+        }
+    }
+
+    /**
+     * On the expired event the client needs recreating and the ephemeral nodes are gone, build a new session and put
+     *  every election back in one go, backing off and trying again while the ensemble can't be reached
+     *
+     * @param expiredAt System.nanoTime() from when we heard the session expired
+     */
+    private void recoverSession(long expiredAt)
+    {
+        List<ElectionWatcher> current = new ArrayList<>(elections);
+        try {
+            ZooKeeper expired = zooKeeperClient;
+            recovering = true;
+            zooKeeperClient = new ZooKeeper(zooKeeperAddress, sessionTimeout, this);
+            expired.close();
+
+            for ( int attempt = 1; ; attempt++ )
+            {
+                try {
+                    reregister(current, attempt > 1);
+                    break;
+                }
+                catch ( KeeperException.SessionExpiredException ex ) {
+                    // the new session went too, its own expired event has queued the next recovery
+                    events.publish(ElectionEvent.Type.RECOVERY_RETRY, null, attempt, ex);
+                    return;
+                }
+                catch ( KeeperException.ConnectionLossException | KeeperException.OperationTimeoutException ex ) {
+                    if ( attempt == MAX_RECOVERY_ATTEMPTS ) {
+                        throw ex;
+                    }
+                    // full jitter so a fleet that lost the ensemble together doesn't come back in lock step
+                    long backoff = Math.min( MAX_RECOVERY_BACKOFF_MILLIS, RECOVERY_BACKOFF_MILLIS << (attempt - 1) );
+                    long sleep = ThreadLocalRandom.current().nextLong(backoff + 1);
+                    events.publish(ElectionEvent.Type.RECOVERY_RETRY, null, attempt, ex);
+                    Thread.sleep(sleep);
+                }
+            }
+        }
+        catch (InterruptedException | KeeperException | IOException e) {
+            events.publish(ElectionEvent.Type.ERROR, null, ElectionEvent.NO_VALUE, e);
+            // the environment is totally jacked let the elections take shutdown steps
+            for ( ElectionWatcher election : stillRegistered(current) )
+            {
+                election.terminate(e);
+            }
+            return;
+        }
+
+        metrics.sessionRecovered(expiredAt);
+        events.publish( ElectionEvent.Type.SESSION_RECOVERED, null, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - expiredAt) );
+
+        for ( ElectionWatcher election : stillRegistered(current) )
+        {
+            election.determineOrder();
+        }
+
+        // the watches died with the old session
+        for ( LeaderView view : leaderViews )
+        {
+            view.refresh();
+        }
+        for ( PartitionedElection election : partitionedElections )
+        {
+            election.refresh();
+        }
+    }
+
+    /**
+     * Virtual threads if the JDK has them, they're looked up reflectively so we still build and run on 1.8
+     */
+    private static Executor createDefaultCallbackExecutor()
+    {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch ( ReflectiveOperationException ex ) {
+            return Executors.newCachedThreadPool(runnable ->
+            {
+                Thread thread = new Thread(runnable, "election-callback");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Put the root paths and election nodes back for a set of elections in as few requests as possible. The root path
+     *  creates are fired off without waiting, ZK runs a session's requests in order so they're in place before the
+     *  first multi() is, and the whole thing costs about one round trip per batch.
+     */
+    private void reregister(List<ElectionWatcher> toRegister, boolean retry) throws KeeperException, InterruptedException
+    {
+        if ( retry ) {
+            // a multi() cut off by the connection dropping may still have gone through, adopt anything it created
+            //  rather than leaving ghost candidates in line ahead of us
+            toRegister = withoutAdopted(toRegister);
+        }
+
+        Set<String> roots = new LinkedHashSet<>();
+        for ( ElectionWatcher election : toRegister )
+        {
+            addWithParents( roots, election.getLeaderNodeRootPath() );
+            addWithParents( roots, election.getElectionNodePath() );
+        }
+        AsyncCallback.StringCallback ignoreExisting = (rc, path, ctx, name) ->
+                metrics.operation( ZooKeeperMetrics.Operation.CREATE, (Long) ctx,
+                        rc == KeeperException.Code.NODEEXISTS.intValue() ? KeeperException.Code.OK.intValue() : rc );
+        for ( String root : roots )
+        {
+            zooKeeperClient.create( root, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, ignoreExisting,
+                    System.nanoTime() );
+        }
+
+        for ( int start = 0; start < toRegister.size(); start += REREGISTER_BATCH_SIZE )
+        {
+            // anything unregistered or closed while we were backing off mustn't be put back in line
+            List<ElectionWatcher> batch = stillRegistered(
+                    toRegister.subList( start, Math.min(start + REREGISTER_BATCH_SIZE, toRegister.size()) ) );
+            if ( batch.isEmpty() ) {
+                continue;
+            }
+            List<Op> ops = new ArrayList<>( batch.size() );
+            for ( ElectionWatcher election : batch )
+            {
+                ops.add( Op.create( election.getAppNodePath(), new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.EPHEMERAL_SEQUENTIAL) );
+            }
+
+            List<OpResult> results = metrics.timed( ZooKeeperMetrics.Operation.MULTI, () -> zooKeeperClient.multi(ops) );
+
+            for ( int i = 0; i < batch.size(); i++ )
+            {
+                String nodePath = ((OpResult.CreateResult) results.get(i)).getPath();
+                if ( batch.get(i).registered(nodePath) ) {
+                    metrics.count(ZooKeeperMetrics.Counter.REREGISTRATION);
+                }
+                else {
+                    // closed while the multi() was in flight, it never heard of this node so it won't delete it
+                    deleteAsync(nodePath);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the elections out of a snapshot that are still registered and running
+     */
+    private List<ElectionWatcher> stillRegistered(List<ElectionWatcher> snapshot)
+    {
+        List<ElectionWatcher> registered = new ArrayList<>( snapshot.size() );
+        for ( ElectionWatcher election : snapshot )
+        {
+            ElectionWatcher.State state = election.getState();
+            if ( state != ElectionWatcher.State.CLOSED && state != ElectionWatcher.State.FAILED
+                    && elections.contains(election) ) {
+                registered.add(election);
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Fire and forget delete of a node nobody owns
+     */
+    private void deleteAsync(String path)
+    {
+        zooKeeperClient.delete( path, -1, (rc, nodePath, ctx) ->
+                metrics.operation( ZooKeeperMetrics.Operation.DELETE, (Long) ctx, rc ), System.nanoTime() );
+    }
+
+    /**
+     * A node counts as ours only if it has our name and is owned by this session, every election in a process shares
+     *  the host and process id in its name so the name alone could adopt another manager's node
+     *
+     * @return the elections that still need an election node, the rest have been handed the one they already have
+     */
+    private List<ElectionWatcher> withoutAdopted(List<ElectionWatcher> toRegister) throws KeeperException, InterruptedException
+    {
+        long sessionId = zooKeeperClient.getSessionId();
+        List<ElectionWatcher> remaining = new ArrayList<>( toRegister.size() );
+        for ( ElectionWatcher election : stillRegistered(toRegister) )
+        {
+            String prefix = election.getAppNodePath().substring( election.getElectionNodePath().length() + 1 );
+            String adopted = null;
+            List<String> children;
+            try {
+                children = metrics.timed( ZooKeeperMetrics.Operation.GET_CHILDREN,
+                        () -> zooKeeperClient.getChildren( election.getElectionNodePath(), false ) );
+            }
+            catch ( KeeperException.NoNodeException ex ) {
+                // the roots didn't make it either
+                children = Collections.emptyList();
+            }
+
+            for ( String child : children )
+            {
+                if ( child.startsWith(prefix) ) {
+                    String nodePath = election.getElectionNodePath() + "/" + child;
+                    Stat stat = exists(nodePath);
+                    if ( stat != null && stat.getEphemeralOwner() == sessionId ) {
+                        adopted = nodePath;
+                        break;
+                    }
+                }
+            }
+
+            if ( adopted == null ) {
+                remaining.add(election);
+            }
+            else if ( ! election.registered(adopted) ) {
+                // closed since we looked, the node is nobody's now
+                deleteAsync(adopted);
+            }
+        }
+        return remaining;
+    }
+
+    private Stat exists(String path) throws KeeperException, InterruptedException
+    {
+        return metrics.timed( ZooKeeperMetrics.Operation.EXISTS, () -> zooKeeperClient.exists(path, false) );
+    }
+
+    /**
+     * Add every level of a path, parents first
+     */
+    private static void addWithParents(Set<String> paths, String path)
+    {
+        for ( int i = path.indexOf('/', 1); i > 0; i = path.indexOf('/', i + 1) )
+        {
+            paths.add( path.substring(0, i) );
+        }
+        paths.add(path);
+    }
+}
@@ -1,33 +1,85 @@
 package com.zootil.election;
 
 
+import com.zootil.events.ElectionEvent;
+import com.zootil.events.ElectionEvents;
+import com.zootil.metrics.ZooKeeperMetrics;
 import com.zootil.util.NodeHelper;
+import com.zootil.util.SerialExecutor;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeSet;
-
-interface INodeIdentifierGenerator
-{
-    String getIdentifier();
-}
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Class to assist in enabling processes to take part in leader elections and propagate those election events down through
  *  the stack so services can become reactive to election events.
  *
+ *  Elections run over a session owned by an ElectionManager, the public constructors create a manager just for this
+ *  election, use ElectionManager.register to run many elections over one session.
+ *
+ *  The constructors wait for the election to register and find its place in line. To start elections without
+ *  blocking, many at once say, use builder(app)...start() which hands back a CompletableFuture instead. close or
+ *  closeAsync leave the election deleting our nodes on the way out, so a successor doesn't wait on our session to
+ *  expire.
+ *
+ *  The election is a state machine driven entirely by ZK async callbacks and watch events so nothing ever blocks the
+ *  client's event thread, which every election on the session shares. IElectable callbacks are handed to the manager's
+ *  callback executor and delivered strictly in order.
+ *
+ *  An IRankedElectable also hears about its place in line, followers watch the node ahead of them as usual and the
+ *  candidate third in line watches the leader too, so whoever is next in line always knows it. A candidate that
+ *  moves up to next in line marks its election node so the one behind it re-ranks and takes over watching the
+ *  leader. A leader leaving with a handoff marks its election node too, which its successor sees through the watch it
+ *  already has.
+ *
+ *  Every request, the time from our predecessor going to us leading and the time spent in IElectable callbacks are
+ *  recorded into the manager's ZooKeeperMetrics.
+ *
  *  Based on the recipe on the ZK site: http://zookeeper.apache.org/doc/trunk/recipes.html#sc_leaderElection
  */
-public class ElectionWatcher implements  Watcher
+public class ElectionWatcher implements  Watcher, AutoCloseable
 {
     private static final String NODE_SEPARATOR = "/";
     public static final String DEFAULT_ELECTION_NODE = "election";
     public static final String DEFAULT_LEADER_NODE = "currentLeader";
 
+    // the first wait before going round again when the node we mean to watch went first, doubles on every retry
+    private static final long ORDER_RETRY_BACKOFF_MILLIS = 20;
+    private static final long MAX_ORDER_RETRY_BACKOFF_MILLIS = 1000;
+    // the most a reconnect that finds things moved waits before ordering, spreads a fleet reconnecting at once
+    private static final long MAX_REORDER_JITTER_MILLIS = 250;
+
+    // what a leader handing off writes to its election node for its successor to see
+    private static final byte[] HANDOFF_MARKER = "handoff".getBytes(StandardCharsets.UTF_8);
+    // what a candidate moving up to next in line writes to its election node, so the one behind it re-ranks
+    private static final byte[] NEXT_IN_LINE_MARKER = "next".getBytes(StandardCharsets.UTF_8);
+
+    public enum State
+    {
+        /** creating our election node */
+        REGISTERING,
+        /** working out where we are in line */
+        ORDERING,
+        /** watching the node ahead of us */
+        FOLLOWING,
+        /** first in line, taking over the leader node */
+        CLAIMING,
+        LEADING,
+        /** disconnected, waiting to reconnect or expire */
+        SUSPENDED,
+        CLOSED,
+        FAILED
+    }
+
     private final String electionNodePath;
     private final String leaderNodeRootPath;
     private final String leaderNodePath;
@@ -35,31 +87,199 @@ public class ElectionWatcher implements  Watcher
     private final String pathPrefix;
     private final String hostName;
     private final String processId;
-    private ZooKeeper zooKeeperClient;
+    private final ElectionManager manager;
+    private final SerialExecutor callbacks;
+    private final ZooKeeperMetrics metrics;
+    private final ElectionEvents events;
+    private final CompletableFuture<Void> initialOrder = new CompletableFuture<>();
+    private volatile State state = State.REGISTERING;
+    // bumped whenever we (re)register, callbacks for requests issued under an older generation are ignored
+    private int generation;
+    private final CandidateIndex candidates = new CandidateIndex();
+    private volatile MembershipSnapshot membership = MembershipSnapshot.UNREGISTERED;
     private String currentNodePath;
     private int currentNodeId;
     private String watchedNode;
+    // third in line also watches the leader's election node, so it hears when it moves up to next in line
+    private String watchedLeaderCandidate;
+    // the last rank handed to an IRankedElectable
+    private int deliveredRank = -1;
     private IElectable electable;
-    private boolean amILeader;
-    private final String zooKeeperAddress;
-    private boolean firstConnect = true;
+    private volatile boolean amILeader;
+    private final byte[] leaderData;
+    // System.nanoTime() of the last predecessor delete we heard about, 0 once it's been accounted for
+    private long predecessorDeletedAt;
+    // the version of our leader node as we left it, LeaderWriter batches check it hasn't moved
+    private int leaderNodeVersion;
+    // bumped on every disconnect, a grace period timer only acts if no other disconnect has happened since
+    private int suspensions;
+    // what we were doing when the connection dropped, null once the reconnect has dealt with it
+    private State suspendedFrom;
+    // an ordering is already scheduled, anything else wanting one before it runs rides along with it
+    private boolean orderScheduled;
+    // the attempt the scheduled ordering runs as, the furthest along of everyone riding along
+    private int scheduledAttempt;
+    // bumped every time an ordering starts, a scheduled one that has been overtaken by another has nothing left to do
+    private int orderings;
 
     /**
-     * You are provided with a hook to plug in your own Id Generator, if you don't provide one the default generator
-     *  based on process id will be used.
+     * @deprecated this is read while the election is being constructed, before anyone can set it, so it never took
+     *  effect, use Builder.identifierGenerator
      */
+    @Deprecated
     public INodeIdentifierGenerator IdentifierGenerator;
 
     /**
      * A default impl that uses process id
      */
-    private final INodeIdentifierGenerator DEFAULT_ID_GENERATOR = () ->
+    private static final INodeIdentifierGenerator DEFAULT_ID_GENERATOR = () ->
     {
         String name = ManagementFactory.getRuntimeMXBean().getName();
         int index = name.indexOf("@");
         return name.substring(0,index);
     };
 
+    // the session was made just for this election, it goes when we close
+    private final boolean ownsManager;
+
+    /**
+     * Sets up an election to join without blocking, i.e.
+     *
+     *  ElectionWatcher.builder("app").manager(manager).electable(service).start()
+     *
+     * Either a manager whose session to share or a connection string to make a session just for this election is
+     *  needed. Starting many elections this way over one manager bootstraps them all concurrently.
+     */
+    public static final class Builder
+    {
+        private final String app;
+        private String electionNode = DEFAULT_ELECTION_NODE;
+        private String leaderNode = DEFAULT_LEADER_NODE;
+        private ElectionManager manager;
+        private String zookeeperConnectionString;
+        private IElectable electable;
+        private byte[] leaderData = new byte[0];
+        private INodeIdentifierGenerator identifierGenerator;
+
+        private Builder(String app)
+        {
+            this.app = app;
+        }
+
+        /**
+         * @param electionNode the root node where election nodes will be registered, defaults to election
+         * @return this builder
+         */
+        public Builder electionNode(String electionNode)
+        {
+            this.electionNode = electionNode;
+            return this;
+        }
+
+        /**
+         * @param leaderNode the place where the leader registers itself as leader, defaults to currentLeader
+         * @return this builder
+         */
+        public Builder leaderNode(String leaderNode)
+        {
+            this.leaderNode = leaderNode;
+            return this;
+        }
+
+        /**
+         * @param manager the owner of the session to run the election over, it's left open when the election closes
+         * @return this builder
+         */
+        public Builder manager(ElectionManager manager)
+        {
+            this.manager = manager;
+            return this;
+        }
+
+        /**
+         * @param zookeeperConnectionString the comma separated list of ZK instances to make a session just for this
+         *  election with, it's closed along with the election
+         * @return this builder
+         */
+        public Builder connectionString(String zookeeperConnectionString)
+        {
+            this.zookeeperConnectionString = zookeeperConnectionString;
+            return this;
+        }
+
+        /**
+         * @param electable the callback function to your service to notify in with the state of leadership or ZK events
+         * @return this builder
+         */
+        public Builder electable(IElectable electable)
+        {
+            this.electable = electable;
+            return this;
+        }
+
+        /**
+         * @param leaderData what to publish in the leader node while this process leads, i.e. its host:port, keep it small
+         * @return this builder
+         */
+        public Builder leaderData(byte[] leaderData)
+        {
+            this.leaderData = leaderData;
+            return this;
+        }
+
+        /**
+         * @param identifierGenerator names our nodes, defaults to the process id
+         * @return this builder
+         */
+        public Builder identifierGenerator(INodeIdentifierGenerator identifierGenerator)
+        {
+            this.identifierGenerator = identifierGenerator;
+            return this;
+        }
+
+        /**
+         * Join the election, everything but looking up our hostname happens off the calling thread
+         *
+         * @return completes with the election once it has registered and knows where it is in line, completes
+         *  exceptionally with a KeeperException or IOException if it can't
+         */
+        public CompletableFuture<ElectionWatcher> start()
+        {
+            if ( electable == null ) {
+                throw new IllegalStateException("An electable is required");
+            }
+            if ( (manager == null) == (zookeeperConnectionString == null) ) {
+                throw new IllegalStateException("Exactly one of a manager or a connection string is required");
+            }
+
+            ElectionManager electionManager = manager;
+            try {
+                if ( electionManager == null ) {
+                    electionManager = new ElectionManager(zookeeperConnectionString);
+                }
+                return new ElectionWatcher( electionNode, leaderNode, app, electionManager, manager == null, electable,
+                        leaderData, identifierGenerator ).start();
+            }
+            catch ( IOException ex ) {
+                if ( manager == null ) {
+                    closeQuietly(electionManager);
+                }
+                CompletableFuture<ElectionWatcher> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+        }
+    }
+
+    /**
+     * @param app the app 'node' to build the election structure under in ZK
+     * @return a builder for an election that starts without blocking
+     */
+    public static Builder builder(String app)
+    {
+        return new Builder(app);
+    }
+
     /**
      * Full Constructor
      *
@@ -74,24 +294,74 @@ public class ElectionWatcher implements  Watcher
      */
     public ElectionWatcher(String electionNode, String leaderNode, String app, String zookeeperConnectionString, IElectable electable)
             throws IOException, KeeperException, InterruptedException
+    {
+        this( electionNode, leaderNode, app, zookeeperConnectionString, electable, new byte[0] );
+    }
+
+    /**
+     * Full Constructor with a leader payload
+     *
+     * @param electionNode the root node where election nodes will be registered
+     * @param leaderNode the place where the leader registers itself as leader
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param zookeeperConnectionString the comma separated list of ZK instances, i.e. server1:
+     * @param electable the callback function to your service to notify in with the state of leadership or ZK events
+     * @param leaderData what to publish in the leader node while this process leads, i.e. its host:port, keep it small
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws KeeperException
+     */
+    public ElectionWatcher(String electionNode, String leaderNode, String app, String zookeeperConnectionString, IElectable electable,
+                           byte[] leaderData)
+            throws IOException, KeeperException, InterruptedException
+    {
+        this( electionNode, leaderNode, app, new ElectionManager(zookeeperConnectionString), true, electable, leaderData, null );
+        startAndWait();
+    }
+
+    /**
+     * Shared session constructor, see ElectionManager.register
+     *
+     * @param electionNode the root node where election nodes will be registered
+     * @param leaderNode the place where the leader registers itself as leader
+     * @param app the app 'node' to build the election structure under in ZK
+     * @param manager the owner of the session this election runs over
+     * @param electable the callback function to your service to notify in with the state of leadership or ZK events
+     * @param leaderData what to publish in the leader node while this process leads
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws KeeperException
+     */
+    ElectionWatcher(String electionNode, String leaderNode, String app, ElectionManager manager, IElectable electable,
+                    byte[] leaderData)
+            throws IOException, KeeperException, InterruptedException
+    {
+        this( electionNode, leaderNode, app, manager, false, electable, leaderData, null );
+        startAndWait();
+    }
+
+    /**
+     * Sets everything up without going anywhere near ZK, see start
+     */
+    private ElectionWatcher(String electionNode, String leaderNode, String app, ElectionManager manager, boolean ownsManager,
+                            IElectable electable, byte[] leaderData, INodeIdentifierGenerator identifierGenerator)
+            throws IOException
     {
         pathPrefix = NODE_SEPARATOR + app + NODE_SEPARATOR;
         electionNodePath = pathPrefix + electionNode;
         leaderNodeRootPath = pathPrefix + leaderNode;
         hostName = java.net.InetAddress.getLocalHost().getHostName();
-        processId = IdentifierGenerator == null ? DEFAULT_ID_GENERATOR.getIdentifier() : IdentifierGenerator.getIdentifier();
+        processId = identifierGenerator == null ? DEFAULT_ID_GENERATOR.getIdentifier() : identifierGenerator.getIdentifier();
         appNodePath = getFullPathToElectionNode( hostName + "_" + processId + "_" );
         leaderNodePath = leaderNodeRootPath + NODE_SEPARATOR + hostName + "_" + processId;
-        this.zooKeeperAddress = zookeeperConnectionString;
+        this.manager = manager;
+        this.ownsManager = ownsManager;
         amILeader = false;
-
-        System.out.println(String.format("initializing zookeeper client with %s", zookeeperConnectionString));
-        zooKeeperClient = new ZooKeeper(zookeeperConnectionString, 5000, this);
         this.electable = electable;
-
-        // do an initial registration and check for leadership
-        registerWithCluster();
-        determineOrder();
+        this.leaderData = leaderData == null ? new byte[0] : leaderData;
+        this.callbacks = manager.newCallbackQueue();
+        this.metrics = manager.getMetrics();
+        this.events = manager.getEvents();
     }
 
     /**
@@ -114,12 +384,78 @@ public class ElectionWatcher implements  Watcher
     }
 
     /**
-     * Figure out where you fit in the current leadership structure
+     * Register with the cluster, nothing here blocks
      *
-     * @throws KeeperException
-     * @throws InterruptedException
+     * @return completes with this election once it has registered and knows where it is in line
      */
-    private void determineOrder() throws KeeperException, InterruptedException
+    synchronized CompletableFuture<ElectionWatcher> start()
+    {
+        CompletableFuture<ElectionWatcher> started = new CompletableFuture<>();
+        try {
+            manager.add(this);
+        }
+        catch ( IllegalStateException ex ) {
+            closeOwnedManager();
+            started.completeExceptionally(ex);
+            return started;
+        }
+
+        // handed over off the client's event thread, whoever is waiting on it may well go on to block
+        initialOrder.whenCompleteAsync( (order, ex) ->
+        {
+            if ( ex == null ) {
+                started.complete(this);
+            }
+            else {
+                manager.remove(this);
+                closeOwnedManager();
+                started.completeExceptionally(ex);
+            }
+        }, manager.getCallbackExecutor() );
+
+        // do an initial registration and check for leadership
+        registerWithCluster();
+        return started;
+    }
+
+    /**
+     * Start and wait for it, for the blocking constructors
+     */
+    private void startAndWait() throws KeeperException, InterruptedException
+    {
+        try {
+            await( start() );
+        }
+        catch ( InterruptedException ex ) {
+            // don't leave a half registered election behind
+            closeAsync();
+            throw ex;
+        }
+    }
+
+    /**
+     * Wait on one of our futures, unwrapping what went wrong
+     */
+    private static <T> T await(CompletableFuture<T> future) throws KeeperException, InterruptedException
+    {
+        try {
+            return future.get();
+        }
+        catch ( ExecutionException ex ) {
+            if ( ex.getCause() instanceof KeeperException ) {
+                throw (KeeperException) ex.getCause();
+            }
+            if ( ex.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Figure out where you fit in the current leadership structure, safe to call from any thread it never blocks
+     */
+    synchronized void determineOrder()
     {
         determineOrder(0);
     }
@@ -128,60 +464,194 @@ public class ElectionWatcher implements  Watcher
      * Figure out where you fit in the current leadership structure
      *
      * @param attempt the current attempt at determining order you are on
-     * @throws KeeperException
-     * @throws InterruptedException
      */
-    private void determineOrder(int attempt) throws KeeperException, InterruptedException
+    private synchronized void determineOrder(int attempt)
     {
-        // there's no guarantee on the order of the children
-        List<String> children = zooKeeperClient.getChildren( electionNodePath, false );
-        HashMap<Integer, String> sequenceToPath = new HashMap<>();
+        if ( state == State.CLOSED || state == State.FAILED ) {
+            return;
+        }
+        if ( state != State.LEADING ) {
+            state = State.ORDERING;
+        }
+        orderings++;
 
-        // extract the ZK sequence id and map the paths by that id
-        for ( String child : children )
+        final int gen = generation;
+        final long start = System.nanoTime();
+        zk().getChildren( electionNodePath, false, (rc, path, ctx, children, stat) ->
         {
-            sequenceToPath.put( getIdFromNode(child), child );
+            metrics.operation(ZooKeeperMetrics.Operation.GET_CHILDREN, start, rc);
+            onChildren(gen, attempt, rc, children, stat);
+        }, null );
+    }
+
+    private synchronized void onChildren(int gen, int attempt, int rc, List<String> children, Stat stat)
+    {
+        if ( gen != generation ) {
+            return;
+        }
+        if ( rc == KeeperException.Code.NONODE.intValue() ) {
+            // a registration lost before the session first connected never made the paths, or someone removed the
+            //  whole election, either way our node went with it
+            nodeLost();
+            return;
+        }
+        if ( ! checkResult(rc, electionNodePath) ) {
+            return;
         }
 
-        // put the keys in a tree set for easy ordered access, you could sort and binary search if you wanted etc...
-        TreeSet<Integer> set = new TreeSet<>( sequenceToPath.keySet() );
+        // there's no guarantee on the order of the children, the index keeps them sorted and only applies what
+        //  changed since last time
+        candidates.refresh(children, stat);
+        int rank = candidates.rankOf(currentNodeId);
+
+        if ( rank < 0 || currentNodePath == null || ! currentNodePath.endsWith( candidates.nameAt(rank) ) ) {
+            // a create that was cut off by a connection loss may still have made our node, adopt it rather than
+            //  leaving a ghost candidate in line ahead of us
+            String ourPrefix = appNodePath.substring( electionNodePath.length() + 1 );
+            List<String> named = new ArrayList<>();
+            for ( String child : children )
+            {
+                if ( child.startsWith(ourPrefix) ) {
+                    named.add(child);
+                }
+            }
+            adoptOwnNode(gen, named, 0);
+            return;
+        }
+
+        String predecessor = rank == 0 ? null : candidates.nameAt(rank - 1);
+        membership = new MembershipSnapshot( candidates.nameAt(rank), rank, candidates.size(), predecessor, candidates.nameAt(0) );
+        events.publish(ElectionEvent.Type.ORDERED, currentNodePath, rank);
+        deliverPositionChanged(rank);
+        watchLeaderCandidate( gen, rank == 2 ? getFullPathToElectionNode( candidates.nameAt(0) ) : null );
 
         // you are the leader
-        if ( set.first() ==  currentNodeId )
+        if ( rank == 0 )
         {
-            System.out.println("I am the leader!!, registering leadership");
-            registerAsLeader();
+            if ( state != State.LEADING ) {
+                registerAsLeader();
+            }
         }
         else // watch the node next in line
         {
-            int idToWatch = set.lower(currentNodeId);
-            watchedNode = getFullPathToElectionNode(sequenceToPath.get(idToWatch));
-            Stat stat = zooKeeperClient.exists( watchedNode, true );
+            if ( amILeader ) {
+                // someone has jumped ahead of us, only possible if our node was recreated
+                unregisterAsLeader();
+            }
+
+            final String toWatch = getFullPathToElectionNode(predecessor);
+            watchedNode = toWatch;
+            manager.watch(toWatch, this);
+            final long start = System.nanoTime();
+            zk().exists( toWatch, true, (rc2, path, ctx, predecessorStat) ->
+            {
+                metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc2);
+                onPredecessorChecked(gen, attempt, rc2, toWatch, predecessorStat);
+            }, null );
+        }
+    }
 
-            // the node has disapeared since we last got the list and our watch failed
-            if ( stat == null ) {
-                if ( attempt < 3 ) {
+    /**
+     * Watch the leader's election node as well as our predecessor, only the candidate third in line does this
+     *
+     * @param toWatch the leader's election node or null to stop watching it
+     */
+    private void watchLeaderCandidate(int gen, String toWatch)
+    {
+        if ( watchedLeaderCandidate != null && ! watchedLeaderCandidate.equals(toWatch) ) {
+            manager.unwatch(watchedLeaderCandidate);
+        }
+        watchedLeaderCandidate = toWatch;
+        if ( toWatch == null ) {
+            return;
+        }
+
+        manager.watch(toWatch, this);
+        final long start = System.nanoTime();
+        zk().exists( toWatch, true, (rc, path, ctx, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc);
+            // already gone, we're next in line now
+            if ( rc == KeeperException.Code.NONODE.intValue() || (rc == KeeperException.Code.OK.intValue() && stat == null) ) {
+                synchronized ( this ) {
+                    if ( gen == generation && toWatch.equals(watchedLeaderCandidate) ) {
+                        manager.unwatch(toWatch);
+                        watchedLeaderCandidate = null;
+                        determineOrder();
+                    }
+                }
+            }
+        }, null );
+    }
+
+    /**
+     * Our predecessor's data changed, either it's a leader handing off to us or it moved up to next in line and we
+     *  need to re-rank. Reading it puts the watch back at the same time.
+     */
+    private void checkForHandoff(int gen, String predecessor)
+    {
+        manager.watch(predecessor, this);
+        final long start = System.nanoTime();
+        zk().getData( predecessor, true, (rc, path, ctx, data, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.GET_DATA, start, rc);
+            synchronized ( this ) {
+                if ( gen != generation || ! predecessor.equals(watchedNode) ) {
+                    return;
+                }
+                if ( rc == KeeperException.Code.NONODE.intValue() ) {
+                    // it finished handing off before we could look
+                    manager.unwatch(predecessor);
                     watchedNode = null;
-                    System.out.println(String.format( "The node I intended to watch has disapeared, %s, trying again...",
-                                                   sequenceToPath.get(idToWatch)));
-                    determineOrder(attempt++);
+                    predecessorDeletedAt = System.nanoTime();
+                    determineOrder();
+                }
+                else if ( ! checkResult(rc, predecessor) ) {
+                    return;
+                }
+                else if ( membership.getRank() == 1 && Arrays.equals(data, HANDOFF_MARKER) ) {
+                    events.publish(ElectionEvent.Type.HANDOFF_RECEIVED, predecessor);
+                    if ( electable instanceof IRankedElectable ) {
+                        deliver( ((IRankedElectable) electable)::handoffStarted );
+                    }
                 }
                 else {
-                    String err = String.format("I've attempted 3 times to watch a node under path %s and failed, please check cluster",
-                            electionNodePath);
-                    System.err.println(err);
-                    throw new IllegalStateException(err);
+                    determineOrder();
                 }
             }
-            else {
-                System.out.println("Watching node: " + sequenceToPath.get(idToWatch));
-            }
+        }, null );
+    }
+
+    private synchronized void onPredecessorChecked(int gen, int attempt, int rc, String toWatch, Stat stat)
+    {
+        if ( gen != generation || ! toWatch.equals(watchedNode) ) {
+            return;
+        }
+
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        // the node has disapeared since we last got the list and our watch failed, that's the line moving under
+        //  us and never a reason to give up, go round again after a jittered backoff so a burst of departures
+        //  doesn't have everyone behind them hammering the listing
+        if ( code == KeeperException.Code.NONODE || (code == KeeperException.Code.OK && stat == null) ) {
+            manager.unwatch(toWatch);
+            watchedNode = null;
+            metrics.count(ZooKeeperMetrics.Counter.ORDER_RETRY);
+            events.publish(ElectionEvent.Type.ORDER_RETRY, toWatch, attempt + 1);
+            long backoff = Math.min( MAX_ORDER_RETRY_BACKOFF_MILLIS, ORDER_RETRY_BACKOFF_MILLIS << Math.min(attempt, 16) );
+            scheduleOrder( attempt + 1, ThreadLocalRandom.current().nextLong(backoff + 1) );
+        }
+        else if ( checkResult(rc, toWatch) ) {
+            state = State.FOLLOWING;
+            // whoever went wasn't the leader, we're still waiting in line
+            predecessorDeletedAt = 0;
+            events.publish(ElectionEvent.Type.WATCHING_PREDECESSOR, toWatch);
+            initialOrder.complete(null);
         }
     }
 
     private int getIdFromNode(String path)
     {
-        return Integer.parseInt(path.substring( path.lastIndexOf("_") + 1 ));
+        return NodeHelper.parseSequence(path);
     }
 
     private String getFullPathToElectionNode(String nodeName)
@@ -190,69 +660,295 @@ public class ElectionWatcher implements  Watcher
     }
 
     /**
-     * Have this process register itself with the ZK cluster under the election node
-     *
-     * @throws InterruptedException
-     * @throws KeeperException
+     * Every election in a process shares the host and process id in its node name, so a node with our name is only
+     *  ours if this session owns it. Checks them one at a time and registers again if none is.
      */
-    private void registerWithCluster() throws InterruptedException, KeeperException
+    private void adoptOwnNode(int gen, List<String> named, int next)
     {
-        if ( zooKeeperClient != null ) {
-            // make sure appropriate root paths are setup, these will be permanent paths by default once created
-            NodeHelper.createFullPath(zooKeeperClient, leaderNodeRootPath);
-            NodeHelper.createFullPath(zooKeeperClient, electionNodePath);
+        if ( next == named.size() ) {
+            nodeLost();
+            return;
+        }
 
-            try {
-                Stat node = zooKeeperClient.exists(appNodePath, false);
-                if ( node == null ) {
-                    currentNodePath = zooKeeperClient.create( appNodePath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL );
-                    currentNodeId = getIdFromNode(currentNodePath);
-                    System.out.println(String.format("Registered self with cluster at node: %s", currentNodePath));
+        final String nodePath = getFullPathToElectionNode( named.get(next) );
+        final long start = System.nanoTime();
+        zk().exists( nodePath, false, (rc, path, ctx, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc);
+            synchronized ( this ) {
+                if ( gen != generation ) {
+                    return;
                 }
-                else {
-                    throw new IllegalStateException("An app instance on this host and process id is already registered on the node");
+                if ( rc == KeeperException.Code.NONODE.intValue()
+                        || (rc == KeeperException.Code.OK.intValue() && stat.getEphemeralOwner() != zk().getSessionId()) ) {
+                    adoptOwnNode(gen, named, next + 1);
                 }
+                else if ( checkResult(rc, nodePath) ) {
+                    registered(nodePath);
+                    determineOrder();
+                }
+            }
+        }, null );
+    }
+
+    /**
+     * Our election node isn't in line any more, step down if we were leading and register again
+     */
+    private void nodeLost()
+    {
+        events.publish(ElectionEvent.Type.NODE_LOST, currentNodePath);
+        if ( amILeader ) {
+            unregisterAsLeader();
+        }
+        registerWithCluster();
+    }
+
+    /**
+     * Have this process register itself with the ZK cluster under the election node. The root paths are created with
+     *  pipelined async creates ahead of our node, ZK runs a session's requests in order so they are in place by the
+     *  time our create is processed.
+     */
+    private synchronized void registerWithCluster()
+    {
+        // the very first registration is the only one made at generation 0
+        if ( generation > 0 ) {
+            metrics.count(ZooKeeperMetrics.Counter.REREGISTRATION);
+        }
+        state = State.REGISTERING;
+        currentNodePath = null;
+        membership = MembershipSnapshot.UNREGISTERED;
+        final int gen = ++generation;
+
+        // make sure appropriate root paths are setup, these will be permanent paths by default once created
+        createPathAsync(leaderNodeRootPath);
+        createPathAsync(electionNodePath);
+
+        final long start = System.nanoTime();
+        zk().create( appNodePath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+                (rc, path, ctx, name) ->
+                {
+                    metrics.operation(ZooKeeperMetrics.Operation.CREATE, start, rc);
+                    onRegistered(gen, rc, name);
+                }, null );
+    }
+
+    private synchronized void onRegistered(int gen, int rc, String name)
+    {
+        if ( gen != generation ) {
+            // closed while the create was in flight, don't leave the node behind in line
+            if ( state == State.CLOSED && rc == KeeperException.Code.OK.intValue() ) {
+                deleteAsync(name);
+            }
+            return;
+        }
+        if ( checkResult(rc, appNodePath) ) {
+            registered(name);
+            determineOrder();
+        }
+    }
+
+    /**
+     * Fire and forget creates for every level of a path, the node already existing is the normal case
+     */
+    private void createPathAsync(String path)
+    {
+        AsyncCallback.StringCallback ignoreExisting = (rc, nodePath, ctx, name) ->
+        {
+            // the node already being there is the expected outcome, not an error
+            metrics.operation( ZooKeeperMetrics.Operation.CREATE, (Long) ctx,
+                    rc == KeeperException.Code.NODEEXISTS.intValue() ? KeeperException.Code.OK.intValue() : rc );
+            if ( rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NODEEXISTS.intValue() ) {
+                events.publish(ElectionEvent.Type.ERROR, nodePath, rc);
             }
-            catch ( KeeperException ex) {
-                System.out.println("Encountered error registering with the ZooKeeper cluster");
-                ex.printStackTrace();
-                throw ex;
+        };
+
+        StringBuilder currentPath = new StringBuilder();
+        for ( String node : path.split(NODE_SEPARATOR) )
+        {
+            if ( ! node.isEmpty() ) {
+                currentPath.append(NODE_SEPARATOR).append(node);
+                zk().create( currentPath.toString(), new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, ignoreExisting, System.nanoTime() );
             }
         }
     }
 
     /**
-     * You are the new leader let people know
+     * Record the election node ZK created for us
      *
-     * @throws KeeperException
-     * @throws InterruptedException
+     * @param nodePath the full path of our ephemeral sequential node
+     * @return false if we've closed or failed since the node was asked for, it isn't ours and the caller deletes it
+     */
+    synchronized boolean registered(String nodePath)
+    {
+        if ( state == State.CLOSED || state == State.FAILED ) {
+            return false;
+        }
+        // anything still in flight was for the old node
+        generation++;
+        candidates.invalidate();
+        currentNodePath = nodePath;
+        currentNodeId = getIdFromNode(currentNodePath);
+        events.publish(ElectionEvent.Type.REGISTERED, currentNodePath);
+        return true;
+    }
+
+    /**
+     * You are the new leader let people know. Clears out anything else that thinks it is leader then creates our
+     *  leader node, all pipelined off a single listing of the leader root.
      */
-    private void registerAsLeader() throws KeeperException, InterruptedException
+    private synchronized void registerAsLeader()
     {
-        System.out.println(String.format("Removing any old leader node data under: %s", leaderNodeRootPath));
-        // based on our rules ZK says I'm leader remove anything else that thinks it is leader
-        NodeHelper.deleteChildrenOfPath( zooKeeperClient, leaderNodeRootPath);
+        state = State.CLAIMING;
+        final int gen = generation;
+
+        // reclaiming after a reconnect, our own writes to the leader node would otherwise trip the old watch
+        if ( leaderNodePath.equals(watchedNode) ) {
+            manager.unwatch(leaderNodePath);
+            watchedNode = null;
+        }
+
+        events.publish(ElectionEvent.Type.CLAIMING, leaderNodeRootPath);
+        final long start = System.nanoTime();
+        zk().getChildren( leaderNodeRootPath, false, (rc, path, ctx, children) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.GET_CHILDREN, start, rc);
+            onLeaderRootListed(gen, rc, children);
+        }, null );
+    }
 
-        // create a leader node associated to this process that is ephemeral
-        watchedNode = NodeHelper.createFullPath( zooKeeperClient, leaderNodePath, CreateMode.EPHEMERAL);
-        System.out.println(String.format("Registered as leader at node: %s for election node: %s", watchedNode, currentNodePath));
+    private synchronized void onLeaderRootListed(int gen, int rc, List<String> children)
+    {
+        if ( gen != generation ) {
+            return;
+        }
+
+        if ( rc == KeeperException.Code.NONODE.intValue() ) {
+            // someone removed the root out from under us, put it back ahead of our create
+            createPathAsync(leaderNodeRootPath);
+        }
+        else if ( ! checkResult(rc, leaderNodeRootPath) ) {
+            return;
+        }
+        else {
+            // based on our rules ZK says I'm leader remove anything else that thinks it is leader
+            String ourLeaderNode = leaderNodePath.substring( leaderNodeRootPath.length() + 1 );
+            for ( String child : children )
+            {
+                if ( child.equals(ourLeaderNode) ) {
+                    continue;
+                }
+                // delete whatever version you find
+                zk().delete( leaderNodeRootPath + NODE_SEPARATOR + child, -1, this::recordDelete, System.nanoTime() );
+            }
+        }
+
+        // create a leader node associated to this process that is ephemeral, carrying our payload for followers
+        final long start = System.nanoTime();
+        zk().create( leaderNodePath, leaderData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL,
+                (rc2, path, ctx, name) ->
+                {
+                    metrics.operation(ZooKeeperMetrics.Operation.CREATE, start, rc2);
+                    onLeaderNodeCreated(gen, rc2);
+                }, null );
+    }
+
+    private synchronized void onLeaderNodeCreated(int gen, int rc)
+    {
+        if ( gen != generation ) {
+            return;
+        }
+
+        if ( rc == KeeperException.Code.NODEEXISTS.intValue() ) {
+            // left over from this process, we still hold it so just refresh the payload, we only lead once that's
+            //  done so writers fence on the version it leaves behind
+            final long start = System.nanoTime();
+            zk().setData( leaderNodePath, leaderData, -1, (rc2, path, ctx, stat) ->
+            {
+                metrics.operation(ZooKeeperMetrics.Operation.SET_DATA, start, rc2);
+                onLeaderNodeWritten( gen, rc2, stat == null ? 0 : stat.getVersion() );
+            }, null );
+        }
+        else {
+            // a freshly created node is at version 0
+            onLeaderNodeWritten(gen, rc, 0);
+        }
+    }
+
+    private synchronized void onLeaderNodeWritten(int gen, int rc, int version)
+    {
+        if ( gen != generation || ! checkResult(rc, leaderNodePath) ) {
+            return;
+        }
+        leaderNodeVersion = version;
+
+        events.publish(ElectionEvent.Type.BECAME_LEADER, leaderNodePath);
 
         // watch my leader node for action
-        zooKeeperClient.exists(watchedNode, true);
+        watchLeaderNode(gen);
+        state = State.LEADING;
+        initialOrder.complete(null);
+        if ( amILeader ) {
+            // reclaimed inside the disconnect grace period, as far as the service knows nothing happened, and the
+            //  grace timer still running for it is done with
+            suspensions++;
+            return;
+        }
+
         amILeader = true;
+        metrics.count(ZooKeeperMetrics.Counter.LEADERSHIP_FLIP);
+        if ( predecessorDeletedAt != 0 ) {
+            metrics.leadershipTaken(predecessorDeletedAt);
+            predecessorDeletedAt = 0;
+        }
+        deliverLeadershipChanged(true);
+    }
 
-        electable.leadershipChanged( amILeader );
+    private void watchLeaderNode(int gen)
+    {
+        watchedNode = leaderNodePath;
+        manager.watch(leaderNodePath, this);
+        final long start = System.nanoTime();
+        zk().exists( leaderNodePath, true, (rc, path, ctx, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc);
+            // it went before we could watch it, treat it like the delete event we'd have got
+            if ( rc == KeeperException.Code.NONODE.intValue() || (rc == KeeperException.Code.OK.intValue() && stat == null) ) {
+                synchronized ( this ) {
+                    if ( gen == generation && state == State.LEADING ) {
+                        manager.unwatch(leaderNodePath);
+                        leaderNodeDeleted();
+                    }
+                }
+            }
+        }, null );
     }
 
     /**
      * Remove oneself from leadership
      */
-    private void unregisterAsLeader()
+    private synchronized void unregisterAsLeader()
     {
         amILeader = false;
-        electable.leadershipChanged( amILeader );
+        metrics.count(ZooKeeperMetrics.Counter.LEADERSHIP_FLIP);
+        deliverLeadershipChanged(false);
+
+        events.publish(ElectionEvent.Type.LOST_LEADERSHIP, currentNodePath);
+    }
 
-        System.out.println(String.format("I no longer think I am leader at node: %s", currentNodePath));
+    /**
+     * Someone removed our leader node, step down and get back in line
+     */
+    private synchronized void leaderNodeDeleted()
+    {
+        events.publish(ElectionEvent.Type.LEADER_NODE_DELETED, leaderNodePath);
+        if ( amILeader ) {
+            unregisterAsLeader();
+        }
+        // if our ephemeral node is still around whack it, ZK runs these in order so it's gone before the new create
+        if ( currentNodePath != null ) {
+            zk().delete( currentNodePath, -1, this::recordDelete, System.nanoTime() );
+        }
+        registerWithCluster();
     }
 
     public boolean amITheLeader()
@@ -261,47 +957,523 @@ public class ElectionWatcher implements  Watcher
     }
 
     /**
-     * ZK callback hook
+     * @return where we stood in the election as of our last ordering
+     */
+    public MembershipSnapshot getMembership()
+    {
+        return membership;
+    }
+
+    /**
+     * @return where this election is in its lifecycle
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * A locally cached view of the leader of this election, backed by the same session
+     *
+     * @return a new view, close it when you're done with it
+     */
+    public LeaderView createLeaderView()
+    {
+        return manager.addLeaderView(leaderNodeRootPath);
+    }
+
+    /**
+     * Let our successor know we're about to step down on purpose, see ElectionManager.unregister with a handoff
+     *
+     * @return false if we aren't leading so there's no one to hand off to
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean signalHandoff() throws KeeperException, InterruptedException
+    {
+        String nodePath;
+        synchronized ( this ) {
+            if ( state != State.LEADING || currentNodePath == null ) {
+                return false;
+            }
+            nodePath = currentNodePath;
+        }
+
+        metrics.timed( ZooKeeperMetrics.Operation.SET_DATA, () -> zk().setData(nodePath, HANDOFF_MARKER, -1) );
+        events.publish(ElectionEvent.Type.HANDOFF_STARTED, nodePath);
+        return true;
+    }
+
+    /**
+     * A writer for shared state that only lets writes through while this process leads, see LeaderWriter
+     *
+     * @return a new writer with the default batching, close it when you're done with it
+     */
+    public LeaderWriter createLeaderWriter()
+    {
+        return new LeaderWriter(this, LeaderWriter.DEFAULT_MAX_BATCH_SIZE, LeaderWriter.DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * A writer for shared state that only lets writes through while this process leads, see LeaderWriter
+     *
+     * @param maxBatchSize the most writes to put in one multi(), a full batch is sent straight away
+     * @param lingerMillis how long the first write in a batch waits for others to join it
+     * @return a new writer, close it when you're done with it
+     */
+    public LeaderWriter createLeaderWriter(int maxBatchSize, long lingerMillis)
+    {
+        return new LeaderWriter(this, maxBatchSize, lingerMillis);
+    }
+
+    /**
+     * The ops that prove we still lead, our election node is still there and our leader node is as we left it. If
+     *  another process has taken over, or our session is gone, a multi() starting with these fails as a whole.
+     *
+     * @return the fencing ops or null if we aren't leading right now
+     */
+    synchronized List<Op> fencingOps()
+    {
+        if ( state != State.LEADING || currentNodePath == null ) {
+            return null;
+        }
+        List<Op> fence = new ArrayList<>(2);
+        // the sequence makes our election node path unique to this term, any version will do
+        fence.add( Op.check(currentNodePath, -1) );
+        fence.add( Op.check(leaderNodePath, leaderNodeVersion) );
+        return fence;
+    }
+
+    /**
+     * Leave the election, removing our election node and our leader node if we are leading
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void leave() throws KeeperException, InterruptedException
+    {
+        await( leaveAsync() );
+    }
+
+    /**
+     * Leave the election without blocking, the deletes are issued leader node first
+     *
+     * @return completes once our nodes are gone
+     */
+    private CompletableFuture<Void> leaveAsync()
+    {
+        boolean wasLeader;
+        String nodePath;
+        synchronized ( this ) {
+            if ( state == State.CLOSED ) {
+                return CompletableFuture.completedFuture(null);
+            }
+            wasLeader = amILeader;
+            nodePath = currentNodePath;
+            generation++;
+            state = State.CLOSED;
+            membership = MembershipSnapshot.UNREGISTERED;
+            if ( wasLeader ) {
+                unregisterAsLeader();
+            }
+            currentNodePath = null;
+        }
+        events.publish(ElectionEvent.Type.CLOSED, electionNodePath);
+        // anyone still waiting on start won't see it finish now
+        initialOrder.completeExceptionally( new IllegalStateException(String.format("The election on %s was closed", electionNodePath)) );
+
+        CompletableFuture<Void> leaderGone = wasLeader ? deleteAsync(leaderNodePath) : CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> nodeGone = nodePath != null ? deleteAsync(nodePath) : CompletableFuture.completedFuture(null);
+        return CompletableFuture.allOf(leaderGone, nodeGone);
+    }
+
+    /**
+     * Leave the election without blocking. Our election node, and our leader node if we're leading, are deleted
+     *  straight away rather than left for the session to expire, so a successor takes over at once. If the election
+     *  made its own session that's closed too, a shared one is left to its manager.
+     *
+     * @return completes once our nodes are gone and any session of our own is closed
+     */
+    public CompletableFuture<Void> closeAsync()
+    {
+        manager.remove(this);
+        CompletableFuture<Void> left = leaveAsync();
+        if ( ! ownsManager ) {
+            return left;
+        }
+        return left.whenCompleteAsync( (result, ex) -> closeOwnedManager(), manager.getCallbackExecutor() );
+    }
+
+    /**
+     * Leave the election, see closeAsync. Don't call it from a watcher or election callback.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    @Override
+    public void close() throws KeeperException, InterruptedException
+    {
+        await( closeAsync() );
+    }
+
+    private void closeOwnedManager()
+    {
+        if ( ownsManager ) {
+            closeQuietly(manager);
+        }
+    }
+
+    private static void closeQuietly(ElectionManager manager)
+    {
+        try {
+            manager.close();
+        }
+        catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Let the service know the election can't carry on
+     *
+     * @param e what went wrong
+     */
+    void terminate(Exception e)
+    {
+        deliver( () -> electable.terminatingEventOcurred(e) );
+    }
+
+    /**
+     * The election can't carry on, fail construction if we're still in it otherwise tell the service
+     */
+    private synchronized void fail(Exception e)
+    {
+        events.publish(ElectionEvent.Type.ERROR, electionNodePath, ElectionEvent.NO_VALUE, e);
+        state = State.FAILED;
+        generation++;
+        if ( amILeader ) {
+            unregisterAsLeader();
+        }
+        if ( ! initialOrder.completeExceptionally(e) ) {
+            terminate(e);
+        }
+    }
+
+    /**
+     * Deal with the result code of an async call
+     *
+     * @return true if the call succeeded
+     */
+    private boolean checkResult(int rc, String path)
+    {
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        switch ( code )
+        {
+            case OK:
+                return true;
+            case CONNECTIONLOSS:
+            case OPERATIONTIMEOUT:
+                // we re-evaluate everything once we reconnect, the client doesn't send a Disconnected for a first
+                //  connection attempt that failed so don't wait for one to suspend us
+                events.publish(ElectionEvent.Type.CONNECTION_LOST, path);
+                if ( state != State.CLOSED && state != State.FAILED && state != State.SUSPENDED ) {
+                    suspendedFrom = state;
+                    state = State.SUSPENDED;
+                }
+                return false;
+            case SESSIONEXPIRED:
+                // the manager rebuilds the session and puts us back
+                return false;
+            default:
+                fail( KeeperException.create(code, path) );
+                return false;
+        }
+    }
+
+    private void deliverLeadershipChanged(boolean leader)
+    {
+        deliver( () -> electable.leadershipChanged(leader) );
+    }
+
+    private void deliverPositionChanged(int rank)
+    {
+        if ( rank == deliveredRank ) {
+            return;
+        }
+        deliveredRank = rank;
+        if ( rank == 1 && currentNodePath != null ) {
+            // the candidate behind us is third in line now, nudge it through the watch it has on us
+            zk().setData( currentNodePath, NEXT_IN_LINE_MARKER, -1, (rc, path, ctx, stat) ->
+                    metrics.operation( ZooKeeperMetrics.Operation.SET_DATA, (Long) ctx, rc ), System.nanoTime() );
+        }
+        if ( electable instanceof IRankedElectable ) {
+            IRankedElectable ranked = (IRankedElectable) electable;
+            deliver( () -> ranked.positionChanged(rank, rank == 1) );
+        }
+    }
+
+    /**
+     * Hand a callback into the service to the callback executor, timing how long it takes
+     */
+    private void deliver(Runnable callback)
+    {
+        callbacks.execute( () ->
+        {
+            long start = System.nanoTime();
+            try {
+                callback.run();
+            }
+            finally {
+                metrics.callbackCompleted(start);
+            }
+        });
+    }
+
+    /**
+     * Fire and forget delete callback, the ctx is when the delete was issued
+     */
+    private void recordDelete(int rc, String path, Object ctx)
+    {
+        metrics.operation( ZooKeeperMetrics.Operation.DELETE, (Long) ctx, rc );
+    }
+
+    private CompletableFuture<Void> deleteAsync(String path)
+    {
+        CompletableFuture<Void> deleted = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        // delete whatever version you find
+        zk().delete( path, -1, (rc, nodePath, ctx) ->
+        {
+            // already gone is as good as deleted
+            int result = rc == KeeperException.Code.NONODE.intValue() ? KeeperException.Code.OK.intValue() : rc;
+            metrics.operation(ZooKeeperMetrics.Operation.DELETE, start, result);
+            if ( result == KeeperException.Code.OK.intValue() ) {
+                deleted.complete(null);
+            }
+            else {
+                deleted.completeExceptionally( KeeperException.create(KeeperException.Code.get(rc), nodePath) );
+            }
+        }, null );
+        return deleted;
+    }
+
+    ZooKeeperMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    ElectionEvents getEvents()
+    {
+        return events;
+    }
+
+    ZooKeeper getZooKeeper()
+    {
+        return zk();
+    }
+
+    String getElectionNodePath()
+    {
+        return electionNodePath;
+    }
+
+    String getLeaderNodeRootPath()
+    {
+        return leaderNodeRootPath;
+    }
+
+    String getAppNodePath()
+    {
+        return appNodePath;
+    }
+
+    /**
+     * @return the full path of our election node, null until we've registered
+     */
+    synchronized String getCurrentNodePath()
+    {
+        return currentNodePath;
+    }
+
+    private ZooKeeper zk()
+    {
+        return manager.getZooKeeper();
+    }
+
+    /**
+     * ZK callback hook, runs on the client's event thread so everything here is async
      *
      * @param watchedEvent the event ZK wants to pass on
      */
     @Override
-    public void process(WatchedEvent watchedEvent)
+    public synchronized void process(WatchedEvent watchedEvent)
     {
-        System.out.println("Received new event - " + watchedEvent);
+        events.publish(ElectionEvent.Type.WATCH_EVENT, watchedEvent.getPath(), ElectionEvent.NO_VALUE, watchedEvent);
         switch (watchedEvent.getState())
         {
            case SyncConnected:
                handleSyncEvent(watchedEvent);
                break;
            case Disconnected:
+               if ( state != State.CLOSED && state != State.FAILED && state != State.SUSPENDED ) {
+                   suspendedFrom = state;
+                   state = State.SUSPENDED;
+               }
                if ( amILeader ) {
-                  // we don't know the state of the world, lets stop the service from doing any more damage
-                  unregisterAsLeader();
+                   suspendLeadership();
                }
                break;
            case Expired:
-               try {
-                   // on the expired event your client is toast and needs recreating, ephemeral nodes are gone
-                   zooKeeperClient = new ZooKeeper(zooKeeperAddress, 3000, this);
-                   registerWithCluster();
-                   determineOrder();
-               }
-               catch (InterruptedException | KeeperException | IOException e) {
-                   System.out.println(String.format("Session was expired, got an exception while creating new client and registering ex: %s", e));
-                   // the environment is totally jacked let the election watcher take shutdown steps
-                   electable.terminatingEventOcurred(e);
+               // on the expired event your client is toast, the manager recreates it and re-registers us
+               if ( amILeader ) {
+                   unregisterAsLeader();
                }
                break;
            case AuthFailed:
                String err = "Athenticating to the ZK cluster failed cannot start up properly";
-               System.out.println(err);
-               electable.terminatingEventOcurred(new IllegalStateException(err));
+               fail(new IllegalStateException(err));
+               break;
            default:
                throw new IllegalStateException(String.format("Got a state type I have no mapping for State: %s", watchedEvent.getState()));
         }
     }
 
+    /**
+     * We don't know the state of the world, hold on to leadership through the grace period in case this is just a
+     *  blip, after that stop the service from doing any more damage
+     */
+    private void suspendLeadership()
+    {
+        long grace = manager.getDisconnectGraceMillis();
+        if ( grace <= 0 ) {
+            unregisterAsLeader();
+            return;
+        }
+
+        events.publish(ElectionEvent.Type.LEADERSHIP_SUSPENDED, currentNodePath, grace);
+        final int suspension = ++suspensions;
+        manager.schedule( () -> gracePeriodOver(suspension), grace );
+    }
+
+    private synchronized void gracePeriodOver(int suspension)
+    {
+        // still haven't got back to reclaiming the leader node, whether we're still disconnected or reconnected and
+        //  stuck ordering or claiming, someone else may be leading by now
+        if ( suspension == suspensions && amILeader ) {
+            events.publish(ElectionEvent.Type.GRACE_EXPIRED, electionNodePath);
+            unregisterAsLeader();
+        }
+    }
+
+    /**
+     * Back on the same session after a disconnect. The client put our watches back as it reconnected and the server
+     *  fired any whose nodes changed while we were away, those events get here ahead of anything we ask now. So a
+     *  candidate that had settled in line only needs to know its own node and the one ahead of it are still there,
+     *  two pipelined exists rather than listing every candidate, which matters when a server restart has the whole
+     *  line reconnecting at once. The election node's cversion isn't enough, it moves for every candidate joining
+     *  at the back.
+     */
+    private synchronized void reconnected()
+    {
+        State previous = suspendedFrom;
+        suspendedFrom = null;
+        if ( state != State.SUSPENDED ) {
+            // a watch that fired as we reconnected has already started ordering us
+            return;
+        }
+
+        if ( amILeader || previous == State.LEADING || previous == State.CLAIMING ) {
+            // the leader reclaims straight away, it's the one the grace period is running down on
+            determineOrder();
+            return;
+        }
+        if ( previous != State.FOLLOWING || currentNodePath == null || watchedNode == null ) {
+            // we were part way through something and may have lost a request, go round again
+            scheduleReorder();
+            return;
+        }
+
+        final int gen = generation;
+        final String ourNode = currentNodePath;
+        final String predecessor = watchedNode;
+        final int[] ourResult = new int[1];
+        final long start = System.nanoTime();
+        zk().exists( ourNode, false, (rc, path, ctx, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc);
+            ourResult[0] = rc;
+        }, null );
+        // answered after the first, a session's requests are handled in order
+        zk().exists( predecessor, false, (rc, path, ctx, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc);
+            onReconnectChecked(gen, predecessor, ourResult[0], rc);
+        }, null );
+    }
+
+    private synchronized void onReconnectChecked(int gen, String predecessor, int ourRc, int predecessorRc)
+    {
+        if ( gen != generation || state != State.SUSPENDED || ! predecessor.equals(watchedNode) ) {
+            // ordered, disconnected again or re-registered since we asked
+            return;
+        }
+
+        int ok = KeeperException.Code.OK.intValue();
+        int noNode = KeeperException.Code.NONODE.intValue();
+        if ( ourRc == ok && predecessorRc == ok ) {
+            state = State.FOLLOWING;
+            metrics.count(ZooKeeperMetrics.Counter.REORDER_SKIPPED);
+            events.publish(ElectionEvent.Type.REORDER_SKIPPED, currentNodePath);
+        }
+        else if ( (ourRc == ok || ourRc == noNode) && (predecessorRc == ok || predecessorRc == noNode) ) {
+            scheduleReorder();
+        }
+        else {
+            // connection loss waits for the next reconnect, anything else is a real failure
+            checkResult( ourRc != ok && ourRc != noNode ? ourRc : predecessorRc, electionNodePath );
+        }
+    }
+
+    /**
+     * Order again after a short random wait, however many reasons there are before it runs there's only one ordering
+     */
+    private void scheduleReorder()
+    {
+        if ( orderScheduled ) {
+            return;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(MAX_REORDER_JITTER_MILLIS + 1);
+        events.publish(ElectionEvent.Type.REORDER_SCHEDULED, currentNodePath, delay);
+        scheduleOrder(0, delay);
+    }
+
+    /**
+     * Order after a wait, or ride along with the ordering already scheduled
+     *
+     * @param attempt the attempt the ordering runs as
+     * @param delay how long to wait in ms
+     */
+    private void scheduleOrder(int attempt, long delay)
+    {
+        if ( orderScheduled ) {
+            scheduledAttempt = Math.max(scheduledAttempt, attempt);
+            return;
+        }
+        orderScheduled = true;
+        scheduledAttempt = attempt;
+        final int since = orderings;
+        manager.schedule( () -> scheduledOrder(since), delay );
+    }
+
+    private synchronized void scheduledOrder(int since)
+    {
+        orderScheduled = false;
+        // a watch firing or a reconnect may have ordered us while we waited, if so there's nothing left to do
+        if ( orderings == since && (state == State.SUSPENDED || state == State.ORDERING) ) {
+            determineOrder(scheduledAttempt);
+        }
+    }
+
     /**
      * Handle various sync cases
      *
@@ -309,40 +1481,49 @@ public class ElectionWatcher implements  Watcher
      */
     private void handleSyncEvent(WatchedEvent watchedEvent)
     {
-        try
-        {
-            if ( ! firstConnect ) {
-                // this is a reconnect after disconnect, it isn't related to a watched node
-                if ( watchedEvent.getType() == Event.EventType.None ) {
-                     determineOrder();
+        if ( state == State.CLOSED || state == State.FAILED ) {
+            return;
+        }
+
+        // a reconnect after a disconnect or a lost request, or the first connect of the session which finds us still
+        //  registering and is ignored, it isn't related to a watched node
+        if ( watchedEvent.getType() == Event.EventType.None ) {
+             reconnected();
+        }
+        else if ( watchedEvent.getPath().equals( watchedNode ) ) {
+            if ( state == State.LEADING && watchedNode.equals(leaderNodePath) ) {
+                // someone has removed us, otherwise it was a data change and the watch needs putting back
+                if ( watchedEvent.getType() == Event.EventType.NodeDeleted ) {
+                    leaderNodeDeleted();
                 }
-                // the node we were watching was deleted we are the new leader, unless we were the leader and
-                //  someone has removed us
-                else if ( watchedEvent.getType() == Event.EventType.NodeDeleted && watchedEvent.getPath().equals( watchedNode ) ) {
-                    if ( ! amILeader ) {
-                         registerAsLeader();
-                         System.out.println(NodeHelper.getTreeAsString(zooKeeperClient, pathPrefix));
-                    }
-                    else {
-                        System.out.println("My leader node has been deleted need to unregister as leader and re-register with cluster.");
-                        unregisterAsLeader();
-                        // if our ephemeral node is still around whack it
-                        if ( zooKeeperClient.exists(currentNodePath, false ) != null ) {
-                             zooKeeperClient.delete(currentNodePath, -1);
-                        }
-                        registerWithCluster();
-                        determineOrder();
-                    }
+                else {
+                    watchLeaderNode(generation);
                 }
             }
+            // the node we were watching was deleted, check if we're now first in line
+            else if ( watchedEvent.getType() == Event.EventType.NodeDeleted ) {
+                predecessorDeletedAt = System.nanoTime();
+                watchedNode = null;
+                determineOrder();
+            }
+            else if ( watchedEvent.getType() == Event.EventType.NodeDataChanged ) {
+                checkForHandoff(generation, watchedNode);
+            }
             else {
-                firstConnect = false;
+                determineOrder();
             }
         }
-        catch (InterruptedException | KeeperException e)
-        {
-            System.out.println(String.format("Got an exception while determing order ex: %s", e));
-            electable.terminatingEventOcurred(e);
+        else if ( watchedEvent.getPath().equals( watchedLeaderCandidate ) ) {
+            // the leader went so our predecessor leads now, or it's handing off and the watch needs putting back
+            if ( watchedEvent.getType() == Event.EventType.NodeDeleted ) {
+                watchedLeaderCandidate = null;
+                determineOrder();
+            }
+            else {
+                String leaderCandidate = watchedLeaderCandidate;
+                watchedLeaderCandidate = null;
+                watchLeaderCandidate(generation, leaderCandidate);
+            }
         }
     }
 }
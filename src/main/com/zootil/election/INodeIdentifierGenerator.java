@@ -0,0 +1,10 @@
+package com.zootil.election;
+
+/**
+ * Names this candidate in an election, our nodes are host_[identifier]_. Elections sharing an election node from the
+ *  same host need different identifiers, by default it's the process id.
+ */
+public interface INodeIdentifierGenerator
+{
+    String getIdentifier();
+}
@@ -0,0 +1,25 @@
+package com.zootil.election;
+
+/**
+ * The callbacks for a PartitionedElection, a partition is only ever acquired after it was released by this process.
+ *  The candidate first in line still hears leadershipChanged, for any coordination work that needs a single owner.
+ */
+public interface IPartitionedElectable extends IElectable
+{
+    /**
+     * @param partitions the partitions that are now ours, in ascending order
+     */
+    void partitionsAcquired(int[] partitions);
+
+    /**
+     * Stop working on these, they're being handed to another candidate or we've lost touch with the ensemble
+     *
+     * @param partitions the partitions that are no longer ours, in ascending order
+     */
+    void partitionsReleased(int[] partitions);
+
+    @Override
+    default void leadershipChanged(boolean amILeader)
+    {
+    }
+}
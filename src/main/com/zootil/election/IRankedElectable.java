@@ -0,0 +1,24 @@
+package com.zootil.election;
+
+/**
+ * An IElectable that also wants to know where it stands in line, so a standby can warm up before it takes over
+ */
+public interface IRankedElectable extends IElectable
+{
+    /**
+     * Our place in line changed. Rank is as of our last ordering, we re-order whenever the node ahead of us or the
+     *  leader goes, so isNextInLine is always current while a rank further back may lag until it is our turn to move.
+     *
+     * @param rank 0 for the leader, 1 for next in line and so on
+     * @param isNextInLine true if we take over when the current leader goes
+     */
+    void positionChanged(int rank, boolean isNextInLine);
+
+    /**
+     * The leader is stepping down on purpose and we're next, it keeps leading for a little while so we can get ready
+     *  then leadershipChanged(true) follows as usual. See ElectionManager.unregister with a handoff.
+     */
+    default void handoffStarted()
+    {
+    }
+}
@@ -0,0 +1,9 @@
+package com.zootil.election;
+
+public interface LeaderListener
+{
+    /**
+     * @param leader the new leader or null if there is no leader right now
+     */
+    void leaderChanged(LeaderView.Leader leader);
+}
@@ -0,0 +1,231 @@
+package com.zootil.election;
+
+import com.zootil.events.ElectionEvent;
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.SerialExecutor;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A locally cached view of who currently leads an election, and the payload they published, so non leaders can find
+ *  the leader without a ZK round trip.
+ *
+ * The view watches the children of the leader root node and reloads with async calls whenever it changes, the result
+ *  is swapped into a volatile field so getLeader is lock free and allocation free. Updates happen on the client's
+ *  event thread, listeners are called on the manager's callback executor, in the order the changes happened.
+ */
+public class LeaderView implements Watcher
+{
+    /**
+     * An immutable snapshot of the current leader
+     */
+    public static final class Leader
+    {
+        private final String id;
+        private final byte[] data;
+
+        Leader(String id, byte[] data)
+        {
+            this.id = id;
+            this.data = data;
+        }
+
+        /**
+         * @return the leader's node name, host_processId
+         */
+        public String getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return the payload the leader published, shared so don't modify it
+         */
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        @Override
+        public String toString()
+        {
+            return id;
+        }
+    }
+
+    private final ElectionManager manager;
+    private final String leaderNodeRootPath;
+    private final CopyOnWriteArrayList<LeaderListener> listeners = new CopyOnWriteArrayList<>();
+    private final SerialExecutor callbacks;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile Leader leader;
+    private volatile boolean stale;
+    private volatile boolean closed;
+
+    LeaderView(ElectionManager manager, String leaderNodeRootPath)
+    {
+        this.manager = manager;
+        this.leaderNodeRootPath = leaderNodeRootPath;
+        this.callbacks = manager.newCallbackQueue();
+        refresh();
+    }
+
+    /**
+     * @return the current leader or null if there isn't one right now
+     */
+    public Leader getLeader()
+    {
+        return leader;
+    }
+
+    /**
+     * Wait for the first load of the leader to complete
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of timeout
+     * @return false if the timeout passed first
+     * @throws InterruptedException
+     */
+    public boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return loaded.await(timeout, unit);
+    }
+
+    public void addListener(LeaderListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LeaderListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stop tracking the leader
+     */
+    public void close()
+    {
+        closed = true;
+        manager.removeLeaderView(this);
+    }
+
+    String getLeaderNodeRootPath()
+    {
+        return leaderNodeRootPath;
+    }
+
+    /**
+     * Reload the leader, also used by the manager to re-arm the watch on a new session
+     */
+    void refresh()
+    {
+        if ( ! closed ) {
+            manager.getZooKeeper().getChildren( leaderNodeRootPath, this, this::childrenLoaded, System.nanoTime() );
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent watchedEvent)
+    {
+        if ( watchedEvent.getType() != Event.EventType.None ) {
+            refresh();
+        }
+        // a load that failed while we were disconnected left no watch behind, try again
+        else if ( watchedEvent.getState() == Event.KeeperState.SyncConnected && stale ) {
+            refresh();
+        }
+    }
+
+    private void childrenLoaded(int rc, String path, Object ctx, List<String> children)
+    {
+        manager.getMetrics().operation( ZooKeeperMetrics.Operation.GET_CHILDREN, (Long) ctx, rc );
+        if ( closed ) {
+            return;
+        }
+
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if ( code == KeeperException.Code.NONODE ) {
+            // no one has set the election up yet, wait for the root to appear
+            stale = false;
+            manager.getZooKeeper().exists( leaderNodeRootPath, this, this::rootChecked, System.nanoTime() );
+            publish(null);
+        }
+        else if ( code != KeeperException.Code.OK ) {
+            stale = true;
+            manager.getEvents().publish(ElectionEvent.Type.ERROR, leaderNodeRootPath, rc);
+        }
+        else if ( children.isEmpty() ) {
+            stale = false;
+            publish(null);
+        }
+        else {
+            // a new leader clears out the old leader nodes before adding its own, if we catch it mid change the
+            //  watch fires again once it settles
+            String id = children.get(0);
+            long start = System.nanoTime();
+            manager.getZooKeeper().getData( leaderNodeRootPath + "/" + id, false, (rc2, dataPath, dataCtx, data, stat) ->
+            {
+                manager.getMetrics().operation(ZooKeeperMetrics.Operation.GET_DATA, start, rc2);
+                dataLoaded(rc2, id, data);
+            }, null );
+        }
+    }
+
+    private void rootChecked(int rc, String path, Object ctx, Stat stat)
+    {
+        manager.getMetrics().operation( ZooKeeperMetrics.Operation.EXISTS, (Long) ctx, rc );
+        if ( stat != null ) {
+            refresh();
+        }
+    }
+
+    private void dataLoaded(int rc, String id, byte[] data)
+    {
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if ( code == KeeperException.Code.OK ) {
+            stale = false;
+            publish( new Leader(id, data) );
+        }
+        else if ( code != KeeperException.Code.NONODE ) {
+            // a NoNode means the leader went away and the children watch will bring us back
+            stale = true;
+        }
+    }
+
+    private void publish(Leader current)
+    {
+        if ( closed ) {
+            return;
+        }
+
+        Leader previous = leader;
+        leader = current;
+        loaded.countDown();
+
+        boolean changed = previous == null ? current != null
+                : current == null || ! previous.id.equals(current.id) || ! Arrays.equals(previous.data, current.data);
+        if ( changed ) {
+            // off the event thread, a slow listener would hold up every election on the session
+            callbacks.execute( () ->
+            {
+                long start = System.nanoTime();
+                try {
+                    for ( LeaderListener listener : listeners )
+                    {
+                        listener.leaderChanged(current);
+                    }
+                }
+                finally {
+                    manager.getMetrics().callbackCompleted(start);
+                }
+            });
+        }
+    }
+}
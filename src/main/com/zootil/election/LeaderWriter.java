@@ -0,0 +1,230 @@
+package com.zootil.election;
+
+import com.zootil.events.ElectionEvent;
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.NodeHelper;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes to shared ZK state that only land while the owning ElectionWatcher leads.
+ *
+ * Writes are queued and coalesced into multi() transactions, each led by check ops on our election node and leader
+ *  node (see ElectionWatcher.fencingOps). A leader that has been deposed, say it was partitioned away and its session
+ *  expired while it still thought it led, has its whole batch fail atomically instead of clobbering the new leader's
+ *  writes, and there's no need for an amITheLeader/exists round trip before every write.
+ *
+ * A batch goes out once it holds maxBatchSize writes or lingerMillis after its first write, whichever comes first.
+ *  The multi() calls block so they run on the writer's own thread, never on the client's event thread, and the write
+ *  futures are completed there too.
+ *
+ * If one write in a batch fails on its own (say a bad version) that write's future fails and the rest of the batch
+ *  is resubmitted. If the fence fails every write in the batch fails with an IllegalStateException.
+ */
+public class LeaderWriter implements AutoCloseable
+{
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_LINGER_MILLIS = 5;
+
+    private static final class Write
+    {
+        final Op op;
+        final CompletableFuture<OpResult> result = new CompletableFuture<>();
+
+        Write(Op op)
+        {
+            this.op = op;
+        }
+    }
+
+    private final ElectionWatcher election;
+    private final ZooKeeperMetrics metrics;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+    private final ArrayDeque<Write> queue = new ArrayDeque<>();
+    private final ScheduledExecutorService flusher;
+    // guarded by queue
+    private boolean closed;
+
+    LeaderWriter(ElectionWatcher election, int maxBatchSize, long lingerMillis)
+    {
+        if ( maxBatchSize < 1 || lingerMillis < 0 ) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1 and lingerMillis can't be negative");
+        }
+        this.election = election;
+        this.metrics = election.getMetrics();
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "leader-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a write
+     *
+     * @param op the create, setData, delete or check to apply while we lead
+     * @return completed with the op's result once its batch is committed
+     */
+    public CompletableFuture<OpResult> write(Op op)
+    {
+        Write write = new Write(op);
+        synchronized ( queue ) {
+            if ( closed ) {
+                write.result.completeExceptionally( new IllegalStateException("The writer is closed") );
+                return write.result;
+            }
+            queue.add(write);
+
+            // the first write of a batch starts the clock, filling a batch sends it straight away
+            if ( queue.size() >= maxBatchSize ) {
+                flusher.execute(this::drain);
+            }
+            else if ( queue.size() == 1 ) {
+                flusher.schedule(this::drain, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return write.result;
+    }
+
+    public CompletableFuture<OpResult> create(String path, byte[] data, CreateMode mode)
+    {
+        return write( Op.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode) );
+    }
+
+    public CompletableFuture<OpResult> setData(String path, byte[] data, int version)
+    {
+        return write( Op.setData(path, data, version) );
+    }
+
+    public CompletableFuture<OpResult> delete(String path, int version)
+    {
+        return write( Op.delete(path, version) );
+    }
+
+    /**
+     * Send everything queued now rather than waiting for the linger
+     */
+    public void flush()
+    {
+        synchronized ( queue ) {
+            if ( ! closed ) {
+                flusher.execute(this::drain);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting writes, anything already queued is still sent
+     */
+    @Override
+    public void close()
+    {
+        synchronized ( queue ) {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+            flusher.execute(this::drain);
+            flusher.shutdown();
+        }
+    }
+
+    private void drain()
+    {
+        List<Write> batch;
+        while ( ! (batch = nextBatch()).isEmpty() )
+        {
+            commit(batch);
+        }
+    }
+
+    private List<Write> nextBatch()
+    {
+        synchronized ( queue ) {
+            List<Write> batch = new ArrayList<>( Math.min(queue.size(), maxBatchSize) );
+            while ( batch.size() < maxBatchSize && ! queue.isEmpty() )
+            {
+                batch.add( queue.poll() );
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Commit a batch in one fenced transaction. A multi() is all or nothing so when one of our writes fails we fail
+     *  just that write and resubmit the rest.
+     */
+    private void commit(List<Write> batch)
+    {
+        while ( ! batch.isEmpty() )
+        {
+            List<Op> fence = election.fencingOps();
+            if ( fence == null ) {
+                failAll( batch, new IllegalStateException(String.format("Not the leader of %s, dropping %d writes",
+                        election.getElectionNodePath(), batch.size())) );
+                return;
+            }
+
+            List<Op> ops = new ArrayList<>( fence.size() + batch.size() );
+            ops.addAll(fence);
+            for ( Write write : batch )
+            {
+                ops.add(write.op);
+            }
+
+            try {
+                List<OpResult> results = metrics.timed( ZooKeeperMetrics.Operation.MULTI,
+                        () -> election.getZooKeeper().multi(ops) );
+                for ( int i = 0; i < batch.size(); i++ )
+                {
+                    batch.get(i).result.complete( results.get( fence.size() + i ) );
+                }
+                return;
+            }
+            catch ( KeeperException ex ) {
+                int failed = NodeHelper.indexOfFailure( ex.getResults() );
+                if ( failed < 0 ) {
+                    // never got as far as running the ops, i.e. the connection dropped
+                    failAll(batch, ex);
+                    return;
+                }
+                if ( failed < fence.size() ) {
+                    election.getEvents().publish(ElectionEvent.Type.WRITES_FENCED, election.getElectionNodePath(), batch.size());
+                    failAll( batch, new IllegalStateException(String.format("No longer the leader of %s",
+                            election.getElectionNodePath()), ex) );
+                    return;
+                }
+
+                batch.remove( failed - fence.size() ).result.completeExceptionally(ex);
+            }
+            catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                failAll(batch, ex);
+                return;
+            }
+        }
+    }
+
+    private static void failAll(List<Write> batch, Exception e)
+    {
+        for ( Write write : batch )
+        {
+            write.result.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.zootil.election;
+
+/**
+ * An immutable picture of an election as of this process's last ordering, cheap to read as often as you like.
+ */
+public final class MembershipSnapshot
+{
+    static final MembershipSnapshot UNREGISTERED = new MembershipSnapshot(null, -1, 0, null, null);
+
+    private final String nodeName;
+    private final int rank;
+    private final int candidateCount;
+    private final String predecessor;
+    private final String leader;
+
+    MembershipSnapshot(String nodeName, int rank, int candidateCount, String predecessor, String leader)
+    {
+        this.nodeName = nodeName;
+        this.rank = rank;
+        this.candidateCount = candidateCount;
+        this.predecessor = predecessor;
+        this.leader = leader;
+    }
+
+    /**
+     * @return our election node name, null if we aren't registered
+     */
+    public String getNodeName()
+    {
+        return nodeName;
+    }
+
+    /**
+     * @return our position in line, 0 is the leader and -1 means we aren't registered
+     */
+    public int getRank()
+    {
+        return rank;
+    }
+
+    /**
+     * @return how many candidates are in the election, us included
+     */
+    public int getCandidateCount()
+    {
+        return candidateCount;
+    }
+
+    /**
+     * @return the election node name of the candidate directly ahead of us, null if we're first in line
+     */
+    public String getPredecessor()
+    {
+        return predecessor;
+    }
+
+    /**
+     * @return the election node name of the candidate first in line
+     */
+    public String getLeader()
+    {
+        return leader;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("rank %d of %d, predecessor: %s, leader: %s", rank, candidateCount, predecessor, leader);
+    }
+}
@@ -0,0 +1,352 @@
+package com.zootil.election;
+
+import com.zootil.events.ElectionEvent;
+import com.zootil.events.ElectionEvents;
+import com.zootil.metrics.ZooKeeperMetrics;
+import com.zootil.util.SerialExecutor;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spreads a fixed number of partitions of work over every candidate in an election, rather than handing all of it to
+ *  a single leader.
+ *
+ * Candidates register an ephemeral sequential election node exactly as they do for a plain election, the partitioned
+ *  election then watches the children of the election root and works out who owns what with rendezvous hashing. Every
+ *  candidate scores every partition and the partition goes to the highest score, so all candidates agree on the
+ *  assignment from the same listing without talking to each other, and when a candidate joins or leaves only the
+ *  partitions it gains or had move, about 1/N of them.
+ *
+ * A candidate is scored on its node name without the sequence, host_processId, so a process that comes back after
+ *  its session expired gets the same partitions back. Two candidates that share a host and process id fall back to
+ *  their full node names.
+ *
+ * Assignment follows membership, there's no lock per partition, so while a change settles a partition can briefly be
+ *  released by one candidate after it's been acquired by another. A disconnected candidate keeps its partitions for
+ *  the manager's disconnect grace period and releases them all after that or when its session expires.
+ *
+ * Callbacks run on the manager's callback executor, one at a time in order, releases always come before acquires.
+ */
+public class PartitionedElection implements Watcher
+{
+    private final ElectionManager manager;
+    private final ElectionWatcher election;
+    private final int partitionCount;
+    private final IPartitionedElectable electable;
+    private final SerialExecutor callbacks;
+    private final ZooKeeperMetrics metrics;
+    private final ElectionEvents events;
+    // the partitions we own as of the last assignment, replaced rather than modified
+    private volatile BitSet owned = new BitSet();
+    private volatile boolean closed;
+    private boolean disconnected;
+    // bumped on every disconnect, a grace period timer only acts if no other disconnect has happened since
+    private int suspensions;
+
+    /**
+     * See ElectionManager.registerPartitioned
+     */
+    PartitionedElection(String electionNode, String leaderNode, String app, ElectionManager manager, int partitionCount,
+                        IPartitionedElectable electable)
+            throws KeeperException, InterruptedException, IOException
+    {
+        if ( partitionCount < 1 ) {
+            throw new IllegalArgumentException("There must be at least one partition");
+        }
+        this.manager = manager;
+        this.partitionCount = partitionCount;
+        this.electable = electable;
+        this.callbacks = manager.newCallbackQueue();
+        this.metrics = manager.getMetrics();
+        this.events = manager.getEvents();
+        this.election = manager.register(electionNode, leaderNode, app, electable);
+        refresh();
+    }
+
+    /**
+     * @return the partitions we own right now, in ascending order
+     */
+    public int[] getPartitions()
+    {
+        return owned.stream().toArray();
+    }
+
+    /**
+     * @param partition the partition to check
+     * @return true if we own the partition right now
+     */
+    public boolean owns(int partition)
+    {
+        return owned.get(partition);
+    }
+
+    public int getPartitionCount()
+    {
+        return partitionCount;
+    }
+
+    /**
+     * @return the election our candidacy runs through
+     */
+    public ElectionWatcher getElection()
+    {
+        return election;
+    }
+
+    /**
+     * Release every partition we own and leave the election, see ElectionManager.unregister
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void leave() throws KeeperException, InterruptedException
+    {
+        synchronized ( this ) {
+            closed = true;
+            assign( new BitSet() );
+        }
+        manager.unregister(election);
+    }
+
+    /**
+     * Reload the candidates, also used by the manager to re-arm the watch on a new session
+     */
+    void refresh()
+    {
+        if ( ! closed ) {
+            manager.getZooKeeper().getChildren( election.getElectionNodePath(), this, this::childrenLoaded, System.nanoTime() );
+        }
+    }
+
+    /**
+     * ZK callback hook, reassign on any change to the candidates and keep track of the session
+     *
+     * @param watchedEvent the event ZK wants to pass on
+     */
+    @Override
+    public synchronized void process(WatchedEvent watchedEvent)
+    {
+        if ( closed ) {
+            return;
+        }
+
+        if ( watchedEvent.getType() != Event.EventType.None ) {
+            refresh();
+            return;
+        }
+
+        switch ( watchedEvent.getState() )
+        {
+            case SyncConnected:
+                disconnected = false;
+                // anything could have changed while we were away
+                refresh();
+                break;
+            case Disconnected:
+                disconnected = true;
+                suspend();
+                break;
+            case Expired:
+                // our node went with the session, whoever took our partitions has started on them
+                disconnected = false;
+                assign( new BitSet() );
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void suspend()
+    {
+        if ( owned.isEmpty() ) {
+            return;
+        }
+
+        long grace = manager.getDisconnectGraceMillis();
+        if ( grace <= 0 ) {
+            assign( new BitSet() );
+            return;
+        }
+
+        final int suspension = ++suspensions;
+        manager.schedule( () -> gracePeriodOver(suspension), grace );
+    }
+
+    private synchronized void gracePeriodOver(int suspension)
+    {
+        if ( suspension == suspensions && disconnected && ! closed ) {
+            events.publish(ElectionEvent.Type.GRACE_EXPIRED, election.getElectionNodePath());
+            assign( new BitSet() );
+        }
+    }
+
+    private synchronized void childrenLoaded(int rc, String path, Object ctx, List<String> children)
+    {
+        metrics.operation( ZooKeeperMetrics.Operation.GET_CHILDREN, (Long) ctx, rc );
+        if ( closed ) {
+            return;
+        }
+
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if ( code != KeeperException.Code.OK ) {
+            // we hear about the reconnect or the new session and go again from there
+            events.publish(ElectionEvent.Type.ERROR, path, rc);
+            return;
+        }
+
+        String currentNodePath = election.getCurrentNodePath();
+        String self = currentNodePath == null ? null : currentNodePath.substring( currentNodePath.lastIndexOf('/') + 1 );
+        int selfIndex = children.indexOf(self);
+        // not in the listing means we're between sessions, someone else has our partitions for now
+        if ( selfIndex < 0 ) {
+            assign( new BitSet() );
+            return;
+        }
+
+        String[] keys = candidateKeys(children);
+        int[] owners = ownersOf(keys, partitionCount);
+        BitSet ours = new BitSet(partitionCount);
+        for ( int partition = 0; partition < partitionCount; partition++ )
+        {
+            if ( owners[partition] == selfIndex ) {
+                ours.set(partition);
+            }
+        }
+        assign(ours);
+    }
+
+    /**
+     * Move to a new set of partitions, telling the service what it lost and then what it gained
+     */
+    private void assign(BitSet next)
+    {
+        BitSet current = owned;
+        if ( current.equals(next) ) {
+            return;
+        }
+
+        BitSet released = (BitSet) current.clone();
+        released.andNot(next);
+        BitSet acquired = (BitSet) next.clone();
+        acquired.andNot(current);
+        owned = next;
+
+        if ( ! released.isEmpty() ) {
+            int[] partitions = released.stream().toArray();
+            events.publish(ElectionEvent.Type.PARTITIONS_RELEASED, election.getElectionNodePath(), partitions.length);
+            deliver( () -> electable.partitionsReleased(partitions) );
+        }
+        if ( ! acquired.isEmpty() ) {
+            int[] partitions = acquired.stream().toArray();
+            events.publish(ElectionEvent.Type.PARTITIONS_ACQUIRED, election.getElectionNodePath(), partitions.length);
+            deliver( () -> electable.partitionsAcquired(partitions) );
+        }
+    }
+
+    /**
+     * Hand a callback into the service to the callback executor, timing how long it takes
+     */
+    private void deliver(Runnable callback)
+    {
+        callbacks.execute( () ->
+        {
+            long start = System.nanoTime();
+            try {
+                callback.run();
+            }
+            finally {
+                metrics.callbackCompleted(start);
+            }
+        });
+    }
+
+    /**
+     * The identity each candidate is scored on, its node name without the sequence unless another candidate shares it
+     */
+    static String[] candidateKeys(List<String> children)
+    {
+        String[] keys = new String[children.size()];
+        Map<String, Integer> seen = new HashMap<>( children.size() * 2 );
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            String child = children.get(i);
+            int separator = child.lastIndexOf('_');
+            keys[i] = separator < 0 ? child : child.substring(0, separator);
+            seen.merge( keys[i], 1, Integer::sum );
+        }
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            if ( seen.get( keys[i] ) > 1 ) {
+                keys[i] = children.get(i);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Rendezvous hashing, every partition goes to the candidate with the highest score for it
+     *
+     * @param keys the candidates' identities
+     * @param partitionCount how many partitions there are
+     * @return the index of the owning candidate for every partition, -1 if there are no candidates
+     */
+    static int[] ownersOf(String[] keys, int partitionCount)
+    {
+        long[] hashes = new long[keys.length];
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            hashes[i] = hash( keys[i] );
+        }
+
+        int[] owners = new int[partitionCount];
+        for ( int partition = 0; partition < partitionCount; partition++ )
+        {
+            int owner = -1;
+            long best = 0;
+            for ( int i = 0; i < hashes.length; i++ )
+            {
+                long score = score( hashes[i], partition );
+                // ties are next to impossible but everyone has to break them the same way
+                if ( owner < 0 || score > best || (score == best && keys[i].compareTo( keys[owner] ) > 0) ) {
+                    owner = i;
+                    best = score;
+                }
+            }
+            owners[partition] = owner;
+        }
+        return owners;
+    }
+
+    /**
+     * 64 bit FNV-1a, fixed so every candidate agrees whatever JVM it's on
+     */
+    private static long hash(String key)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0; i < key.length(); i++ )
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Mix a candidate's hash with a partition, the murmur3 finalizer spreads nearby partitions across the range
+     */
+    private static long score(long candidateHash, int partition)
+    {
+        long h = candidateHash ^ (partition * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb53e1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
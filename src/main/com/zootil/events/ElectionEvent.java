@@ -0,0 +1,174 @@
+package com.zootil.events;
+
+/**
+ * Something that happened in an election or its session. Events live in ElectionEvents' ring buffer and are reused
+ *  once every sink has seen them, so a sink must copy out anything it wants to keep.
+ */
+public final class ElectionEvent
+{
+    /**
+     * What getValue returns for an event that doesn't carry one
+     */
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    public enum Level
+    {
+        DEBUG,
+        INFO,
+        WARN
+    }
+
+    public enum Type
+    {
+        /** a session is being started, the path is the connection string */
+        CONNECTING(Level.INFO),
+        /** an election got a watch or session event, the detail is the WatchedEvent */
+        WATCH_EVENT(Level.DEBUG),
+        /** our election node was created, the path is the node */
+        REGISTERED(Level.INFO),
+        /** our election node is gone from the line, the path is the node, we register again */
+        NODE_LOST(Level.WARN),
+        /** we worked out where we are in line, the path is our node and the value our rank */
+        ORDERED(Level.DEBUG),
+        /** watching the node ahead of us, the path is the node */
+        WATCHING_PREDECESSOR(Level.DEBUG),
+        /** the node we meant to watch went first, the path is the node and the value the attempt */
+        ORDER_RETRY(Level.INFO),
+        /** reconnected to find our node and the one ahead of us still there, the path is our node */
+        REORDER_SKIPPED(Level.DEBUG),
+        /** something moved while we were disconnected, the path is our node and the value how many ms until we order */
+        REORDER_SCHEDULED(Level.DEBUG),
+        /** first in line, taking over the leader node, the path is the leader root */
+        CLAIMING(Level.INFO),
+        /** the path is our leader node */
+        BECAME_LEADER(Level.INFO),
+        /** the path is our election node */
+        LOST_LEADERSHIP(Level.INFO),
+        /** someone deleted our leader node, the path is the node */
+        LEADER_NODE_DELETED(Level.WARN),
+        /** we're leaving and have told our successor, the path is our election node */
+        HANDOFF_STARTED(Level.INFO),
+        /** the leader is leaving and handing off to us, the path is the leader's election node */
+        HANDOFF_RECEIVED(Level.INFO),
+        /** a request was cut off by the connection dropping, the path is what it was on */
+        CONNECTION_LOST(Level.INFO),
+        /** disconnected while leading, the value is how many ms we keep leading for */
+        LEADERSHIP_SUSPENDED(Level.WARN),
+        /** we didn't reconnect within the grace period, the path is the election node */
+        GRACE_EXPIRED(Level.WARN),
+        /** the session expired, the detail is the WatchedEvent */
+        EXPIRED(Level.WARN),
+        /** the value is the attempt, the detail what went wrong */
+        RECOVERY_RETRY(Level.WARN),
+        /** every election is back on a new session, the value is how many ms it took from the expiry */
+        SESSION_RECOVERED(Level.INFO),
+        /** the value is how many partitions, the path is the election node */
+        PARTITIONS_ACQUIRED(Level.INFO),
+        /** the value is how many partitions, the path is the election node */
+        PARTITIONS_RELEASED(Level.INFO),
+        /** leadership was lost under pending writes, the path is the election node and the value how many were fenced off */
+        WRITES_FENCED(Level.WARN),
+        /** we left the election, the path is the election node */
+        CLOSED(Level.INFO),
+        /** a request failed, the path is what it was on, the value is the ZK result code or the detail the exception */
+        ERROR(Level.WARN);
+
+        private final Level level;
+
+        Type(Level level)
+        {
+            this.level = level;
+        }
+
+        /**
+         * @return how loudly an event of this type should be logged
+         */
+        public Level getLevel()
+        {
+            return level;
+        }
+    }
+
+    // the sequence this slot was last published at, written last and read first so it fences the rest
+    volatile long sequence = -1;
+    private Type type;
+    private String path;
+    private long value;
+    private Object detail;
+    private long timestamp;
+
+    ElectionEvent()
+    {
+    }
+
+    void set(Type type, String path, long value, Object detail)
+    {
+        this.type = type;
+        this.path = path;
+        this.value = value;
+        this.detail = detail;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Let go of anything the event references once it's been handled
+     */
+    void clear()
+    {
+        path = null;
+        detail = null;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the node the event is about, or null
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return a rank, count, duration or result code depending on the type, or NO_VALUE
+     */
+    public long getValue()
+    {
+        return value;
+    }
+
+    /**
+     * @return the WatchedEvent or exception behind the event, or null
+     */
+    public Object getDetail()
+    {
+        return detail;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the event was published
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder( type.name() );
+        if ( path != null ) {
+            builder.append(' ').append(path);
+        }
+        if ( value != NO_VALUE ) {
+            builder.append(" value=").append(value);
+        }
+        if ( detail != null ) {
+            builder.append(' ').append(detail);
+        }
+        return builder.toString();
+    }
+}
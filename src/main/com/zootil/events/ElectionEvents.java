@@ -0,0 +1,205 @@
+package com.zootil.events;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries election events from the threads they happen on, mostly the ZK client's event thread, to pluggable sinks
+ *  such as Slf4jEventSink.
+ *
+ * Publishing fills in a slot of a preallocated ring buffer and returns, a single daemon thread hands the slots on to
+ *  the sinks. So publishing never blocks on a sink and never allocates, and with no sinks registered, the default,
+ *  it's a single volatile read. If the sinks fall a whole ring behind new events are dropped and counted rather than
+ *  holding up the publisher.
+ *
+ * Callers keep to that by passing paths and exceptions they already have rather than building strings.
+ */
+public class ElectionEvents
+{
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final EventSink[] NO_SINKS = new EventSink[0];
+
+    // how long the sink thread sleeps with nothing to do before looking again, covers a wake up that was missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // built last, it needs the constants above
+    private static final ElectionEvents DEFAULT = new ElectionEvents(DEFAULT_CAPACITY);
+
+    private final ElectionEvent[] ring;
+    private final int mask;
+    // the next sequence to hand to a publisher
+    private final AtomicLong claimed = new AtomicLong();
+    // every sequence below this has been through the sinks and its slot can be reused
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile EventSink[] sinks = NO_SINKS;
+    private volatile Thread sinkThread;
+    private volatile boolean idle;
+
+    /**
+     * @return the process wide instance everything publishes to
+     */
+    public static ElectionEvents getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * @param capacity how many events can be waiting on the sinks, rounded up to a power of 2
+     */
+    public ElectionEvents(int capacity)
+    {
+        if ( capacity < 1 || capacity > 1 << 30 ) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if ( size < capacity ) {
+            size <<= 1;
+        }
+        ring = new ElectionEvent[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            ring[i] = new ElectionEvent();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @param sink gets every event published from now on
+     */
+    public synchronized void addSink(EventSink sink)
+    {
+        EventSink[] current = sinks;
+        EventSink[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = sink;
+        sinks = updated;
+
+        if ( sinkThread == null ) {
+            Thread thread = new Thread(this::drain, "election-events");
+            thread.setDaemon(true);
+            sinkThread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * @param sink a sink added earlier, events already in the ring may still reach it
+     */
+    public synchronized void removeSink(EventSink sink)
+    {
+        EventSink[] current = sinks;
+        for ( int i = 0; i < current.length; i++ )
+        {
+            if ( current[i] == sink ) {
+                EventSink[] updated = new EventSink[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                sinks = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if anyone is listening, worth checking before doing any work just to publish an event
+     */
+    public boolean isEnabled()
+    {
+        return sinks.length > 0;
+    }
+
+    /**
+     * @return how many events were dropped because the sinks had fallen a whole ring behind
+     */
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * @param type what happened
+     * @param path the node it happened to, or null
+     */
+    public void publish(ElectionEvent.Type type, String path)
+    {
+        publish(type, path, ElectionEvent.NO_VALUE, null);
+    }
+
+    /**
+     * @param type what happened
+     * @param path the node it happened to, or null
+     * @param value see the type for what it means
+     */
+    public void publish(ElectionEvent.Type type, String path, long value)
+    {
+        publish(type, path, value, null);
+    }
+
+    /**
+     * @param type what happened
+     * @param path the node it happened to, or null
+     * @param value see the type for what it means, or ElectionEvent.NO_VALUE
+     * @param detail the WatchedEvent or exception behind it, or null
+     */
+    public void publish(ElectionEvent.Type type, String path, long value, Object detail)
+    {
+        if ( sinks.length == 0 ) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if ( sequence - consumed >= ring.length ) {
+                dropped.increment();
+                return;
+            }
+        } while ( ! claimed.compareAndSet(sequence, sequence + 1) );
+
+        ElectionEvent event = ring[(int) sequence & mask];
+        event.set(type, path, value, detail);
+        // the volatile write is what makes the event visible to the sink thread, it has to go last
+        event.sequence = sequence;
+
+        if ( idle ) {
+            LockSupport.unpark(sinkThread);
+        }
+    }
+
+    /**
+     * The sink thread, hands every event on in sequence order
+     */
+    private void drain()
+    {
+        long next = consumed;
+        while ( true )
+        {
+            ElectionEvent event = ring[(int) next & mask];
+            if ( event.sequence != next ) {
+                idle = true;
+                // look again now we're marked idle, a publish that just missed the flag is caught here
+                if ( event.sequence != next ) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+
+            for ( EventSink sink : sinks )
+            {
+                try {
+                    sink.onEvent(event);
+                }
+                catch ( RuntimeException ex ) {
+                    // one bad sink mustn't stop the others hearing about anything else
+                }
+            }
+            event.clear();
+            consumed = ++next;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.zootil.events;
+
+/**
+ * Gets every election event published while it's registered with ElectionEvents. Calls are made one at a time on
+ *  ElectionEvents' own thread, never the ZK client's, so a slow sink can't hold up an election, but while it runs
+ *  events pile up in the ring and are dropped once it's full.
+ */
+public interface EventSink
+{
+    /**
+     * @param event the event, only valid for the length of the call
+     */
+    void onEvent(ElectionEvent event);
+}
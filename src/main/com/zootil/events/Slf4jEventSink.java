@@ -0,0 +1,56 @@
+package com.zootil.events;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs election events through SLF4J, at the level their type suggests, i.e.
+ *
+ *  ElectionEvents.getDefault().addSink(new Slf4jEventSink());
+ */
+public class Slf4jEventSink implements EventSink
+{
+    private final Logger logger;
+
+    /**
+     * Logs to com.zootil.election
+     */
+    public Slf4jEventSink()
+    {
+        this( LoggerFactory.getLogger("com.zootil.election") );
+    }
+
+    /**
+     * @param logger where to log the events
+     */
+    public Slf4jEventSink(Logger logger)
+    {
+        this.logger = logger;
+    }
+
+    @Override
+    public void onEvent(ElectionEvent event)
+    {
+        switch ( event.getType().getLevel() )
+        {
+            case DEBUG:
+                if ( logger.isDebugEnabled() ) {
+                    logger.debug( event.toString() );
+                }
+                break;
+            case INFO:
+                if ( logger.isInfoEnabled() ) {
+                    logger.info( event.toString() );
+                }
+                break;
+            default:
+                if ( event.getDetail() instanceof Throwable ) {
+                    logger.warn( event.toString(), (Throwable) event.getDetail() );
+                }
+                else {
+                    logger.warn( event.toString() );
+                }
+                break;
+        }
+    }
+}
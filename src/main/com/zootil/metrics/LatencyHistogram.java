@@ -0,0 +1,219 @@
+package com.zootil.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed bucket latency histogram safe to record into from any number of threads without locking or allocating.
+ *
+ * Values are bucketed in microseconds, every power of two range is split into four buckets so a percentile is off by
+ *  at most a quarter of its value, and the buckets top out at around 12 days. Percentiles are worked out from a copy of
+ *  the buckets so reading never holds up recording.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^40us is about 12 days, anything longer lands in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos the latency to record, negative values count as 0
+     */
+    public void record(long nanos)
+    {
+        if ( nanos < 0 ) {
+            nanos = 0;
+        }
+        counts.incrementAndGet( bucketOf(nanos / 1000) );
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while ( nanos > max && ! maxNanos.compareAndSet(max, nanos) ) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * @return how many values have been recorded
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, never more than the max seen, 0 if empty
+     */
+    public long getPercentileNanos(double percentile)
+    {
+        return percentileOf( snapshot(), percentile );
+    }
+
+    /**
+     * @return the usual percentiles, in milliseconds, worked out from one consistent copy of the buckets
+     */
+    public Summary summarize()
+    {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for ( long bucket : snapshot )
+        {
+            count += bucket;
+        }
+
+        return new Summary( count,
+                count == 0 ? 0 : toMillis( totalNanos.get() ) / count,
+                toMillis( percentileOf(snapshot, 50) ),
+                toMillis( percentileOf(snapshot, 90) ),
+                toMillis( percentileOf(snapshot, 99) ),
+                toMillis( maxNanos.get() ) );
+    }
+
+    private long[] snapshot()
+    {
+        long[] snapshot = new long[BUCKETS];
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    private long percentileOf(long[] snapshot, double percentile)
+    {
+        long count = 0;
+        for ( long bucket : snapshot )
+        {
+            count += bucket;
+        }
+        if ( count == 0 ) {
+            return 0;
+        }
+
+        long target = Math.max( 1, (long) Math.ceil(count * percentile / 100) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += snapshot[i];
+            if ( seen >= target ) {
+                return Math.min( upperBoundOf(i) * 1000, maxNanos.get() );
+            }
+        }
+        return maxNanos.get();
+    }
+
+    private static double toMillis(long nanos)
+    {
+        return nanos / 1000000.0;
+    }
+
+    static int bucketOf(long micros)
+    {
+        if ( micros < SUB_BUCKETS ) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if ( exponent > MAX_EXPONENT ) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the first value in microseconds past the end of a bucket
+     */
+    static long upperBoundOf(int bucket)
+    {
+        if ( bucket < SUB_BUCKETS ) {
+            return bucket + 1;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * A point in time read of a histogram, in milliseconds
+     */
+    public static final class Summary
+    {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+        public Summary(long count, double mean, double p50, double p90, double p99, double max)
+        {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMean()
+        {
+            return mean;
+        }
+
+        public double getP50()
+        {
+            return p50;
+        }
+
+        public double getP90()
+        {
+            return p90;
+        }
+
+        public double getP99()
+        {
+            return p99;
+        }
+
+        public double getMax()
+        {
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                    count, mean, p50, p90, p99, max);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.zootil.metrics;
+
+/**
+ * Gets every measurement as it's recorded, for pushing them on to some other metrics system. Calls are made on
+ *  whatever thread did the recording, often the ZK client's event thread, so implementations must be quick and
+ *  must not block.
+ */
+public interface MetricsListener
+{
+    /**
+     * @param operation the kind of request
+     * @param nanos from issuing the request to its result
+     * @param rc the ZK result code, 0 for success
+     */
+    void operationCompleted(ZooKeeperMetrics.Operation operation, long nanos, int rc);
+
+    /**
+     * @param nanos from our predecessor's node being deleted to us leading
+     */
+    void leadershipTaken(long nanos);
+
+    /**
+     * @param nanos how long an IElectable callback ran for
+     */
+    void callbackCompleted(long nanos);
+
+    /**
+     * @param nanos from the old session expiring to every election being back on a new one
+     */
+    void sessionRecovered(long nanos);
+
+    void counted(ZooKeeperMetrics.Counter counter);
+}
@@ -0,0 +1,320 @@
+package com.zootil.metrics;
+
+import org.apache.zookeeper.KeeperException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and counts for the ZK requests and election events issued by the library, readable directly, over JMX once
+ *  registered, or pushed to a MetricsListener as they happen.
+ *
+ * Recording is lock free and allocation free, each kind of measurement has its own fixed bucket histogram or counter
+ *  so it is cheap enough to leave on everywhere. NodeHelper and friends record into the default instance, an
+ *  ElectionManager records into the default instance unless it is given its own.
+ */
+public class ZooKeeperMetrics implements ZooKeeperMetricsMXBean
+{
+    public enum Operation
+    {
+        CREATE,
+        DELETE,
+        EXISTS,
+        GET_CHILDREN,
+        GET_DATA,
+        SET_DATA,
+        MULTI
+    }
+
+    public enum Counter
+    {
+        /** the connection to the ensemble dropped */
+        DISCONNECT,
+        /** the session expired and had to be rebuilt */
+        EXPIRY,
+        /** an election node was created again after being lost */
+        REREGISTRATION,
+        /** the node ahead of us went before we could watch it and we went round again */
+        ORDER_RETRY,
+        /** we took or gave up leadership */
+        LEADERSHIP_FLIP,
+        /** we reconnected to find our place in line as we left it and didn't need to order again */
+        REORDER_SKIPPED
+    }
+
+    /**
+     * A blocking ZK request, see timed
+     */
+    public interface Request<T>
+    {
+        T call() throws KeeperException, InterruptedException;
+    }
+
+    public static final String OBJECT_NAME_PREFIX = "com.zootil:type=ZooKeeperMetrics,name=";
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    // after OPERATIONS, the constructor needs it
+    private static final ZooKeeperMetrics DEFAULT = new ZooKeeperMetrics();
+
+    private final LatencyHistogram[] operations = new LatencyHistogram[OPERATIONS.length];
+    private final AtomicLongArray operationErrors = new AtomicLongArray(OPERATIONS.length);
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final LatencyHistogram timeToLeadership = new LatencyHistogram();
+    private final LatencyHistogram callbackTime = new LatencyHistogram();
+    private final LatencyHistogram timeToReregister = new LatencyHistogram();
+    private volatile MetricsListener listener;
+
+    public ZooKeeperMetrics()
+    {
+        for ( int i = 0; i < operations.length; i++ )
+        {
+            operations[i] = new LatencyHistogram();
+        }
+        for ( int i = 0; i < counters.length; i++ )
+        {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the process wide instance
+     */
+    public static ZooKeeperMetrics getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * @param listener gets every measurement as it's recorded, null to stop
+     */
+    public void setListener(MetricsListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Record a completed ZK request
+     *
+     * @param operation the kind of request
+     * @param startNanos System.nanoTime() from when the request was issued
+     * @param rc the ZK result code
+     */
+    public void operation(Operation operation, long startNanos, int rc)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        operations[operation.ordinal()].record(nanos);
+        if ( rc != 0 ) {
+            operationErrors.incrementAndGet( operation.ordinal() );
+        }
+
+        MetricsListener current = listener;
+        if ( current != null ) {
+            current.operationCompleted(operation, nanos, rc);
+        }
+    }
+
+    /**
+     * Make a blocking ZK request and record it, a KeeperException is recorded with its code and thrown on
+     *
+     * @param operation the kind of request
+     * @param request makes the request
+     * @return what the request returned
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public <T> T timed(Operation operation, Request<T> request) throws KeeperException, InterruptedException
+    {
+        long start = System.nanoTime();
+        int rc = KeeperException.Code.SYSTEMERROR.intValue();
+        try {
+            T result = request.call();
+            rc = KeeperException.Code.OK.intValue();
+            return result;
+        }
+        catch ( KeeperException ex ) {
+            rc = ex.code().intValue();
+            throw ex;
+        }
+        finally {
+            operation(operation, start, rc);
+        }
+    }
+
+    /**
+     * Record taking leadership after the node ahead of us went away
+     *
+     * @param predecessorDeletedNanos System.nanoTime() from when we heard our predecessor was deleted
+     */
+    public void leadershipTaken(long predecessorDeletedNanos)
+    {
+        long nanos = System.nanoTime() - predecessorDeletedNanos;
+        timeToLeadership.record(nanos);
+
+        MetricsListener current = listener;
+        if ( current != null ) {
+            current.leadershipTaken(nanos);
+        }
+    }
+
+    /**
+     * Record a callback into the service finishing
+     *
+     * @param startNanos System.nanoTime() from when the callback started
+     */
+    public void callbackCompleted(long startNanos)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        callbackTime.record(nanos);
+
+        MetricsListener current = listener;
+        if ( current != null ) {
+            current.callbackCompleted(nanos);
+        }
+    }
+
+    /**
+     * Record every election being back on a new session after an expiry
+     *
+     * @param expiredNanos System.nanoTime() from when we heard the old session expired
+     */
+    public void sessionRecovered(long expiredNanos)
+    {
+        long nanos = System.nanoTime() - expiredNanos;
+        timeToReregister.record(nanos);
+
+        MetricsListener current = listener;
+        if ( current != null ) {
+            current.sessionRecovered(nanos);
+        }
+    }
+
+    public void count(Counter counter)
+    {
+        counters[counter.ordinal()].increment();
+
+        MetricsListener current = listener;
+        if ( current != null ) {
+            current.counted(counter);
+        }
+    }
+
+    public LatencyHistogram getOperationHistogram(Operation operation)
+    {
+        return operations[operation.ordinal()];
+    }
+
+    public LatencyHistogram getTimeToLeadershipHistogram()
+    {
+        return timeToLeadership;
+    }
+
+    public LatencyHistogram getCallbackHistogram()
+    {
+        return callbackTime;
+    }
+
+    public LatencyHistogram getTimeToReregisterHistogram()
+    {
+        return timeToReregister;
+    }
+
+    public long getCount(Counter counter)
+    {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Expose these metrics on the platform MBean server as com.zootil:type=ZooKeeperMetrics,name=[name]
+     *
+     * @param name distinguishes this instance from any others, i.e. "default" or the app name
+     * @return the name registered under, for unregistering
+     * @throws JMException
+     */
+    public ObjectName registerMBean(String name) throws JMException
+    {
+        ObjectName objectName = new ObjectName( OBJECT_NAME_PREFIX + ObjectName.quote(name) );
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Summary> getOperationLatencies()
+    {
+        Map<String, LatencyHistogram.Summary> latencies = new LinkedHashMap<>();
+        for ( Operation operation : OPERATIONS )
+        {
+            latencies.put( operation.name(), operations[operation.ordinal()].summarize() );
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getOperationErrors()
+    {
+        Map<String, Long> errors = new LinkedHashMap<>();
+        for ( Operation operation : OPERATIONS )
+        {
+            errors.put( operation.name(), operationErrors.get( operation.ordinal() ) );
+        }
+        return errors;
+    }
+
+    @Override
+    public LatencyHistogram.Summary getTimeToLeadership()
+    {
+        return timeToLeadership.summarize();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getCallbackTime()
+    {
+        return callbackTime.summarize();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getTimeToReregister()
+    {
+        return timeToReregister.summarize();
+    }
+
+    @Override
+    public long getDisconnects()
+    {
+        return getCount(Counter.DISCONNECT);
+    }
+
+    @Override
+    public long getExpiries()
+    {
+        return getCount(Counter.EXPIRY);
+    }
+
+    @Override
+    public long getReregistrations()
+    {
+        return getCount(Counter.REREGISTRATION);
+    }
+
+    @Override
+    public long getOrderRetries()
+    {
+        return getCount(Counter.ORDER_RETRY);
+    }
+
+    @Override
+    public long getLeadershipFlips()
+    {
+        return getCount(Counter.LEADERSHIP_FLIP);
+    }
+
+    @Override
+    public long getReordersSkipped()
+    {
+        return getCount(Counter.REORDER_SKIPPED);
+    }
+}
@@ -0,0 +1,40 @@
+package com.zootil.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of ZooKeeperMetrics, latencies are in milliseconds
+ */
+public interface ZooKeeperMetricsMXBean
+{
+    /**
+     * @return latency of each kind of ZK request, keyed by operation name
+     */
+    Map<String, LatencyHistogram.Summary> getOperationLatencies();
+
+    /**
+     * @return how many of each kind of ZK request failed, keyed by operation name
+     */
+    Map<String, Long> getOperationErrors();
+
+    LatencyHistogram.Summary getTimeToLeadership();
+
+    LatencyHistogram.Summary getCallbackTime();
+
+    /**
+     * @return from a session expiring to every election being back on the new session
+     */
+    LatencyHistogram.Summary getTimeToReregister();
+
+    long getDisconnects();
+
+    long getExpiries();
+
+    long getReregistrations();
+
+    long getOrderRetries();
+
+    long getLeadershipFlips();
+
+    long getReordersSkipped();
+}
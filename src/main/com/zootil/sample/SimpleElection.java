@@ -9,6 +9,7 @@ import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Simple service that listens for leader changes
@@ -16,10 +17,17 @@ import java.io.IOException;
 public class SimpleElection implements IElectable
 {
     public static void main(String [] args)
-            throws IOException, InterruptedException, KeeperException
+            throws IOException, InterruptedException, KeeperException, ExecutionException
     {
         // this is just a simple server that assumes you are running zookeeper locally on the default port
-        ElectionWatcher watcher = new ElectionWatcher("SimpleServer", "0.0.0.0:2181,0.0.0.0:2182,0.0.0.0:2183", new SimpleElection());
+        ElectionWatcher watcher = ElectionWatcher.builder("SimpleServer")
+                .connectionString("0.0.0.0:2181,0.0.0.0:2182,0.0.0.0:2183")
+                .electable(new SimpleElection())
+                .start()
+                .get();
+
+        // leave on the way out so whoever is next takes over straight away rather than once our session expires
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> watcher.closeAsync().join() ) );
 
         while (true)
         {
@@ -1,16 +1,31 @@
 package com.zootil.util;
 
+import com.zootil.metrics.ZooKeeperMetrics;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * General purpose helper functions for interacting with Zookeeper.
+ *
+ * Every request made is timed into ZooKeeperMetrics.getDefault().
  */
 public class NodeHelper
 {
+    /**
+     * How many async requests the bulk helpers will have outstanding against the client at once by default
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+
+    private static final ZooKeeperMetrics METRICS = ZooKeeperMetrics.getDefault();
+
     /**
      * Handles creating multi depth paths in one call.
      *
@@ -58,16 +73,28 @@ public class NodeHelper
     {
         String [] nodes = path.split("/");
 
+        // the common case is the path is already there, that costs one round trip instead of one per level
+        String fullPath = path.endsWith("/") ? path.substring( 0, path.length() - 1 ) : path;
+        if ( ! fullPath.isEmpty() && exists(zk, fullPath) != null )
+        {
+            return fullPath;
+        }
+
         String currentPath = "/";
 
 
         for ( int i = 1; i < nodes.length; i++ )
         {
             currentPath += nodes[i];
-            Stat stat = zk.exists(currentPath, false);
+            Stat stat = exists(zk, currentPath);
             if ( stat == null )
             {
-                zk.create( currentPath, new byte[0], acl, mode );
+                try {
+                    create( zk, currentPath, acl, mode );
+                }
+                catch ( KeeperException.NodeExistsException ex ) {
+                    // someone else created it between our exists and create, that's fine
+                }
             }
 
             currentPath += "/";
@@ -77,7 +104,97 @@ public class NodeHelper
     }
 
     /**
-     * Delete a path and any children it has
+     * Creates many multi depth paths at once, pipelining the creates rather than waiting on a round trip per level.
+     *
+     * @param zk your zookeeper connection
+     * @param paths the full paths you want to create
+     * @return the number of nodes that were actually created
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public static int createFullPaths( ZooKeeper zk, Collection<String> paths )
+            throws KeeperException, InterruptedException
+    {
+        return createFullPaths(zk, paths, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates many multi depth paths at once. Every distinct node along every path is issued as an async create,
+     *  parents ahead of their children, and ZK processes a session's requests in order so a child's create always
+     *  lands after its parent's. A node that already exists counts as success so no exists checks are needed, the
+     *  whole batch costs roughly one round trip per maxInFlight nodes.
+     *
+     * Note: the async results come back on the client's event thread so don't call this from a Watcher or callback.
+     *
+     * @param zk your zookeeper connection
+     * @param paths the full paths you want to create
+     * @param acl the ACL details to associate to the paths
+     * @param mode what type of nodes are you creating, note some types can't support children
+     * @param maxInFlight the most creates to have outstanding at once
+     * @return the number of nodes that were actually created
+     * @throws KeeperException the first failure other than the node existing
+     * @throws InterruptedException
+     */
+    public static int createFullPaths( ZooKeeper zk, Collection<String> paths, List<ACL> acl, CreateMode mode, int maxInFlight )
+            throws KeeperException, InterruptedException
+    {
+        if ( maxInFlight < 1 ) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+
+        // a parent is always seen before any of its children so insertion order is a valid create order
+        LinkedHashSet<String> nodes = new LinkedHashSet<>();
+        for ( String path : paths )
+        {
+            StringBuilder currentPath = new StringBuilder();
+            for ( String node : path.split("/") )
+            {
+                if ( ! node.isEmpty() ) {
+                    currentPath.append("/").append(node);
+                    nodes.add( currentPath.toString() );
+                }
+            }
+        }
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicReference<KeeperException> error = new AtomicReference<>();
+        AsyncCallback.StringCallback callback = (rc, path, ctx, name) ->
+        {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            // an existing node is success here
+            METRICS.operation( ZooKeeperMetrics.Operation.CREATE, (Long) ctx,
+                    code == KeeperException.Code.NODEEXISTS ? KeeperException.Code.OK.intValue() : rc );
+            if ( code == KeeperException.Code.OK ) {
+                created.incrementAndGet();
+            }
+            else if ( code != KeeperException.Code.NODEEXISTS ) {
+                error.compareAndSet( null, KeeperException.create(code, path) );
+            }
+            inFlight.release();
+        };
+
+        for ( String node : nodes )
+        {
+            // children of a failed node will only fail too, stop issuing and report the first error
+            if ( error.get() != null ) {
+                break;
+            }
+            inFlight.acquire();
+            zk.create( node, new byte[0], acl, mode, callback, System.nanoTime() );
+        }
+
+        // wait for everything outstanding to drain
+        inFlight.acquire(maxInFlight);
+
+        if ( error.get() != null ) {
+            throw error.get();
+        }
+        return created.get();
+    }
+
+    /**
+     * Delete a path and any children it has, for large trees see SubtreeDeleter
      *
      * @param zk your zookeeper connection
      * @param path the path to delete along with that paths children
@@ -110,10 +227,10 @@ public class NodeHelper
                 throws KeeperException, InterruptedException
     {
 
-        Stat stat = zk.exists( path, false );
+        Stat stat = exists( zk, path );
         if ( stat != null )
         {
-            List<String> children = zk.getChildren(path, false);
+            List<String> children = getChildren(zk, path);
             for ( String child : children )
             {
                 deletePath(zk, path + "/" + child, true);
@@ -122,7 +239,7 @@ public class NodeHelper
             if ( deleteParentWithChildren )
             {
                 // delete whatever version you find
-                zk.delete( path, -1);
+                delete( zk, path );
             }
             return true;
         }
@@ -131,7 +248,8 @@ public class NodeHelper
     }
 
     /**
-     * Helper function for printing trees of nodes
+     * Helper function for printing trees of nodes, this builds the whole tree in memory one blocking round trip per
+     *  node at a time so for anything large stream it with TreeWalker instead
      *
      * @param zk your zookeeper connection
      * @param path the path root path to print and the tree beneath it
@@ -143,10 +261,10 @@ public class NodeHelper
     {
         StringBuilder builder = new StringBuilder();
 
-        if ( zk.exists(path, false) != null )
+        if ( exists(zk, path) != null )
         {
            builder.append( path ).append("\n");
-           List<String> children = zk.getChildren( path, false);
+           List<String> children = getChildren( zk, path );
 
            for ( String child : children )
            {
@@ -158,4 +276,71 @@ public class NodeHelper
 
         return builder.toString();
     }
+
+    /**
+     * Pull the sequence number off the end of a sequential node name, host_pid_0000000042, without any substring
+     *  garbage
+     *
+     * @param nodeName the node name
+     * @return the sequence id
+     */
+    public static int parseSequence( String nodeName )
+    {
+        int value = 0;
+        for ( int i = nodeName.lastIndexOf('_') + 1; i < nodeName.length(); i++ )
+        {
+            char c = nodeName.charAt(i);
+            if ( c < '0' || c > '9' ) {
+                throw new NumberFormatException(String.format("No sequence id on node %s", nodeName));
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Find the op that sank a multi, ZK fails every op in a failed multi so it's the first error other than OK
+     *
+     * @param results the results from the multi's KeeperException
+     * @return the index of the failed op or -1 if the results don't say
+     */
+    public static int indexOfFailure( List<OpResult> results )
+    {
+        if ( results != null ) {
+            for ( int i = 0; i < results.size(); i++ )
+            {
+                OpResult result = results.get(i);
+                if ( result instanceof OpResult.ErrorResult
+                        && ((OpResult.ErrorResult) result).getErr() != KeeperException.Code.OK.intValue() ) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static Stat exists( ZooKeeper zk, String path ) throws KeeperException, InterruptedException
+    {
+        return METRICS.timed( ZooKeeperMetrics.Operation.EXISTS, () -> zk.exists(path, false) );
+    }
+
+    private static List<String> getChildren( ZooKeeper zk, String path ) throws KeeperException, InterruptedException
+    {
+        return METRICS.timed( ZooKeeperMetrics.Operation.GET_CHILDREN, () -> zk.getChildren(path, false) );
+    }
+
+    private static void create( ZooKeeper zk, String path, List<ACL> acl, CreateMode mode )
+            throws KeeperException, InterruptedException
+    {
+        METRICS.timed( ZooKeeperMetrics.Operation.CREATE, () -> zk.create(path, new byte[0], acl, mode) );
+    }
+
+    private static void delete( ZooKeeper zk, String path ) throws KeeperException, InterruptedException
+    {
+        METRICS.timed( ZooKeeperMetrics.Operation.DELETE, () ->
+        {
+            zk.delete(path, -1);
+            return null;
+        });
+    }
 }
@@ -0,0 +1,341 @@
+package com.zootil.util;
+
+import com.zootil.metrics.ZooKeeperMetrics;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Hands out cluster unique, increasing ids from a counter node shared by every process.
+ *
+ * Rather than a round trip per id, a block of ids is claimed at once by moving the counter on with a versioned
+ *  setData, a compare and set that only one process can win for a given version, and the block is handed out locally
+ *  from an AtomicLong so next() is lock free. Once half a block is gone the next block is claimed in the background,
+ *  so as long as the ensemble keeps up next() never waits on ZK.
+ *
+ * Blocks are sized from how fast ids are being used, aiming for a block to last about targetBlockMillis, so a busy
+ *  process claims big blocks and a quiet one doesn't waste many. Ids are unique and increase within a process, but
+ *  processes interleave and the rest of a block is skipped when the allocator is closed or the process goes.
+ *
+ * The counter node holds the next unclaimed id as 8 big endian bytes, it's created along with any missing parents.
+ */
+public class SequenceAllocator implements AutoCloseable
+{
+    public static final int DEFAULT_INITIAL_BLOCK_SIZE = 10000;
+    public static final int DEFAULT_MIN_BLOCK_SIZE = 100;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1000000;
+    public static final long DEFAULT_TARGET_BLOCK_MILLIS = 10000;
+
+    // how many times to go round when other processes keep winning the compare and set
+    private static final int MAX_CLAIM_ATTEMPTS = 50;
+    // how often a thread waiting on the background claim looks to see if we've been closed
+    private static final long CLOSED_CHECK_MILLIS = 100;
+
+    /**
+     * A claimed range of ids, [start, end)
+     */
+    private static final class Block
+    {
+        final long start;
+        final long end;
+        final AtomicLong next;
+        final long claimedAt = System.nanoTime();
+        final AtomicBoolean prefetching = new AtomicBoolean();
+
+        Block(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    private static final Block EMPTY = new Block(0, 0);
+
+    private final Supplier<ZooKeeper> zooKeeper;
+    private final String path;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+    private final long targetBlockMillis;
+    private final ZooKeeperMetrics metrics = ZooKeeperMetrics.getDefault();
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "sequence-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Block current = EMPTY;
+    // written holding this, the block being claimed in the background, volatile so close can cancel it
+    private volatile CompletableFuture<Block> prefetched;
+    private volatile int blockSize;
+    private volatile boolean closed;
+
+    /**
+     * @param zooKeeper the session to use
+     * @param path the counter node
+     */
+    public SequenceAllocator(ZooKeeper zooKeeper, String path)
+    {
+        this( () -> zooKeeper, path, DEFAULT_INITIAL_BLOCK_SIZE, DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE,
+                DEFAULT_TARGET_BLOCK_MILLIS );
+    }
+
+    /**
+     * @param zooKeeper hands out the current session, i.e. ElectionManager::getZooKeeper
+     * @param path the counter node
+     * @param initialBlockSize how many ids to claim before there's a rate to go on
+     * @param minBlockSize the fewest ids to claim at once
+     * @param maxBlockSize the most ids to claim at once
+     * @param targetBlockMillis how long a block should last at the current rate of use
+     */
+    public SequenceAllocator(Supplier<ZooKeeper> zooKeeper, String path, int initialBlockSize, int minBlockSize,
+                             int maxBlockSize, long targetBlockMillis)
+    {
+        if ( minBlockSize < 1 || maxBlockSize < minBlockSize || targetBlockMillis < 1 ) {
+            throw new IllegalArgumentException("Block sizes must be at least 1 with min <= max and the target must be positive");
+        }
+        this.zooKeeper = zooKeeper;
+        this.path = path;
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.targetBlockMillis = targetBlockMillis;
+        this.blockSize = Math.max( minBlockSize, Math.min(maxBlockSize, initialBlockSize) );
+    }
+
+    /**
+     * @return the next id, only waits on ZK when the background claim hasn't kept up
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IllegalStateException if the allocator has been closed
+     */
+    public long next() throws KeeperException, InterruptedException
+    {
+        while ( true )
+        {
+            checkOpen();
+            Block block = current;
+            long id = block.next.getAndIncrement();
+            if ( id < block.end ) {
+                // half way through, get the next block on its way
+                if ( id - block.start == (block.end - block.start) / 2 ) {
+                    prefetch(block);
+                }
+                return id;
+            }
+            advance(block);
+        }
+    }
+
+    /**
+     * @return how many ids the next claim will ask for
+     */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Stop claiming, whatever is left of the current block is never handed out and next throws from now on
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        prefetcher.shutdownNow();
+        // a claim still queued was dropped by the shutdown and would never complete
+        CompletableFuture<Block> pending = prefetched;
+        if ( pending != null ) {
+            pending.cancel(true);
+        }
+    }
+
+    private void checkOpen()
+    {
+        if ( closed ) {
+            throw new IllegalStateException(String.format("The allocator for %s is closed", path));
+        }
+    }
+
+    private void prefetch(Block block)
+    {
+        if ( ! block.prefetching.compareAndSet(false, true) ) {
+            return;
+        }
+        resize(block);
+        synchronized ( this ) {
+            if ( prefetched == null && ! closed ) {
+                int size = blockSize;
+                try {
+                    prefetched = CompletableFuture.supplyAsync( () ->
+                    {
+                        try {
+                            return claim(size);
+                        }
+                        catch ( KeeperException | InterruptedException ex ) {
+                            throw new IllegalStateException(ex);
+                        }
+                    }, prefetcher );
+                }
+                catch ( RejectedExecutionException ex ) {
+                    // closed under us, the next advance reports it
+                }
+            }
+        }
+    }
+
+    /**
+     * Move on from a used up block to the prefetched one, or claim one now if there isn't one
+     */
+    private synchronized void advance(Block exhausted) throws KeeperException, InterruptedException
+    {
+        // another thread got here first
+        if ( current != exhausted ) {
+            return;
+        }
+        checkOpen();
+
+        CompletableFuture<Block> pending = prefetched;
+        if ( pending != null ) {
+            try {
+                current = awaitClaim(pending);
+                prefetched = null;
+                return;
+            }
+            catch ( ExecutionException | CancellationException ex ) {
+                // claim it ourselves so the caller sees what went wrong
+                prefetched = null;
+                checkOpen();
+            }
+        }
+        else if ( exhausted != EMPTY ) {
+            resize(exhausted);
+        }
+        current = claim(blockSize);
+    }
+
+    /**
+     * Wait on the background claim, giving up if we're closed while waiting
+     */
+    private Block awaitClaim(CompletableFuture<Block> pending) throws ExecutionException, InterruptedException
+    {
+        while ( true )
+        {
+            try {
+                return pending.get(CLOSED_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch ( TimeoutException ex ) {
+                checkOpen();
+            }
+        }
+    }
+
+    /**
+     * Size the next block from how quickly the last one went, ids used per ms times the target block life
+     */
+    private void resize(Block block)
+    {
+        if ( block == EMPTY ) {
+            return;
+        }
+        long used = Math.min( block.next.get(), block.end ) - block.start;
+        double millis = Math.max( 1, (System.nanoTime() - block.claimedAt) / 1000000.0 );
+        long wanted = (long) (used / millis * targetBlockMillis);
+        blockSize = (int) Math.max( minBlockSize, Math.min(maxBlockSize, wanted) );
+    }
+
+    /**
+     * Move the counter on by size with a compare and set, going round again when another process got in first
+     */
+    private Block claim(int size) throws KeeperException, InterruptedException
+    {
+        ZooKeeper zk = zooKeeper.get();
+        for ( int attempt = 1; ; attempt++ )
+        {
+            Stat stat = new Stat();
+            byte[] data = getData(zk, stat);
+            if ( data == null ) {
+                // no counter yet, whoever creates it takes the first block
+                if ( create(zk, size) ) {
+                    return new Block(0, size);
+                }
+                continue;
+            }
+
+            // a counter node made empty, say by NodeHelper.createFullPath, starts from 0
+            long start = data.length < 8 ? 0 : ByteBuffer.wrap(data).getLong();
+            if ( setData(zk, start + size, stat.getVersion()) ) {
+                return new Block(start, start + size);
+            }
+            if ( attempt == MAX_CLAIM_ATTEMPTS ) {
+                throw KeeperException.create(KeeperException.Code.BADVERSION, path);
+            }
+            // spread the retries out so contending processes don't collide again straight away
+            Thread.sleep( ThreadLocalRandom.current().nextLong( Math.min(attempt, 10) + 1 ) );
+        }
+    }
+
+    private byte[] getData(ZooKeeper zk, Stat stat) throws KeeperException, InterruptedException
+    {
+        try {
+            return metrics.timed( ZooKeeperMetrics.Operation.GET_DATA, () -> zk.getData(path, false, stat) );
+        }
+        catch ( KeeperException.NoNodeException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * @return false if another process created the counter first
+     */
+    private boolean create(ZooKeeper zk, long next) throws KeeperException, InterruptedException
+    {
+        int parent = path.lastIndexOf('/');
+        if ( parent > 0 ) {
+            NodeHelper.createFullPath( zk, path.substring(0, parent) );
+        }
+
+        try {
+            metrics.timed( ZooKeeperMetrics.Operation.CREATE,
+                    () -> zk.create(path, encode(next), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT) );
+            return true;
+        }
+        catch ( KeeperException.NodeExistsException ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the version had moved on
+     */
+    private boolean setData(ZooKeeper zk, long next, int version) throws KeeperException, InterruptedException
+    {
+        try {
+            metrics.timed( ZooKeeperMetrics.Operation.SET_DATA, () -> zk.setData(path, encode(next), version) );
+            return true;
+        }
+        catch ( KeeperException.BadVersionException ex ) {
+            return false;
+        }
+    }
+
+    private static byte[] encode(long value)
+    {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+}
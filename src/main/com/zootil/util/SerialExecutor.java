@@ -0,0 +1,104 @@
+package com.zootil.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on top of any other executor. Useful for handing events
+ *  off a thread that mustn't block while keeping them strictly ordered, at most one task per SerialExecutor is ever
+ *  queued on or running in the underlying executor.
+ */
+public class SerialExecutor implements Executor
+{
+    private final Executor executor;
+    private final Consumer<RuntimeException> errorHandler;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param executor where the tasks actually run, a task throwing goes to the running thread's uncaught exception
+     *  handler without killing the thread
+     */
+    public SerialExecutor(Executor executor)
+    {
+        this( executor, ex -> Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), ex) );
+    }
+
+    /**
+     * @param executor where the tasks actually run
+     * @param errorHandler told about a task throwing, or the drain being rejected, on the thread it happened on
+     */
+    public SerialExecutor(Executor executor, Consumer<RuntimeException> errorHandler)
+    {
+        this.executor = executor;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the underlying executor won't take the drain, the task and anything
+     *  queued with it are dropped
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        // only the submitter that takes pending off zero schedules a drain, the running drain picks up the rest
+        if ( pending.getAndIncrement() == 0 ) {
+            try {
+                executor.execute(this::drain);
+            }
+            catch ( RejectedExecutionException ex ) {
+                discardPending();
+                throw ex;
+            }
+        }
+    }
+
+    private void drain()
+    {
+        boolean more = true;
+        try {
+            do {
+                Runnable task = tasks.poll();
+                try {
+                    task.run();
+                }
+                catch ( RuntimeException ex ) {
+                    // one bad task shouldn't stall everything queued behind it
+                    errorHandler.accept(ex);
+                }
+                finally {
+                    more = pending.decrementAndGet() > 0;
+                }
+            }
+            while ( more );
+        }
+        finally {
+            // an Error got out of a task, hand what's left to a fresh drain rather than strand it
+            if ( more ) {
+                try {
+                    executor.execute(this::drain);
+                }
+                catch ( RejectedExecutionException ex ) {
+                    discardPending();
+                    errorHandler.accept(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Nothing is going to run what's queued, drop it the way a drain would run it so pending gets back to zero and the
+     *  next task submitted schedules a fresh drain
+     */
+    private void discardPending()
+    {
+        do {
+            tasks.poll();
+        }
+        while ( pending.decrementAndGet() > 0 );
+    }
+}
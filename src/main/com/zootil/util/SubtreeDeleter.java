@@ -0,0 +1,228 @@
+package com.zootil.util;
+
+import com.zootil.metrics.ZooKeeperMetrics;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk delete for large subtrees. The tree is listed with concurrent async getChildren calls and then deleted deepest
+ *  nodes first in size bounded multi() transactions, so clearing tens of thousands of nodes costs a handful of round
+ *  trips per thousand nodes instead of three per node like NodeHelper.deletePathAndChildren.
+ *
+ * Note: the listing waits on async results which are delivered on the client's event thread, so don't use this from a
+ *  Watcher or callback.
+ */
+public class SubtreeDeleter
+{
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Keeps a batch comfortably under ZK's default 1MB jute.maxbuffer
+     */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 512 * 1024;
+
+    // rough per op cost on the wire on top of the path itself
+    private static final int OP_OVERHEAD_BYTES = 16;
+
+    /**
+     * What a delete run did
+     */
+    public static final class Result
+    {
+        private final boolean pathExisted;
+        private final int nodesDeleted;
+        private final int batches;
+        private final long elapsedMillis;
+
+        Result(boolean pathExisted, int nodesDeleted, int batches, long elapsedMillis)
+        {
+            this.pathExisted = pathExisted;
+            this.nodesDeleted = nodesDeleted;
+            this.batches = batches;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public boolean pathExisted()
+        {
+            return pathExisted;
+        }
+
+        public int getNodesDeleted()
+        {
+            return nodesDeleted;
+        }
+
+        public int getBatches()
+        {
+            return batches;
+        }
+
+        public long getElapsedMillis()
+        {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("deleted %d nodes in %d batches over %dms", nodesDeleted, batches, elapsedMillis);
+        }
+    }
+
+    private final ZooKeeper zk;
+    private final int maxInFlight;
+    private final int maxBatchSize;
+    private final int maxBatchBytes;
+    private int nodesDeleted;
+    private int batches;
+
+    /**
+     * @param zk your zookeeper connection
+     */
+    public SubtreeDeleter(ZooKeeper zk)
+    {
+        this(zk, NodeHelper.DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @param zk your zookeeper connection
+     * @param maxInFlight the most getChildren calls to have outstanding at once while listing the tree
+     * @param maxBatchSize the most deletes to put in a single multi()
+     * @param maxBatchBytes the rough upper bound on the size of a single multi() request
+     */
+    public SubtreeDeleter(ZooKeeper zk, int maxInFlight, int maxBatchSize, int maxBatchBytes)
+    {
+        if ( maxBatchSize < 1 || maxBatchBytes < 1 ) {
+            throw new IllegalArgumentException("batch limits must be at least 1");
+        }
+        this.zk = zk;
+        this.maxInFlight = maxInFlight;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Delete a path and everything under it
+     *
+     * @param path the root of the subtree to delete
+     * @return the stats for the run
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public synchronized Result deletePathAndChildren(String path) throws KeeperException, InterruptedException
+    {
+        return run(path, true);
+    }
+
+    /**
+     * Delete everything under a path, leaving the path itself
+     *
+     * @param path the parent of the nodes to delete
+     * @return the stats for the run
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public synchronized Result deleteChildrenOfPath(String path) throws KeeperException, InterruptedException
+    {
+        return run(path, false);
+    }
+
+    private Result run(String path, boolean deleteParentWithChildren) throws KeeperException, InterruptedException
+    {
+        long start = System.nanoTime();
+        nodesDeleted = 0;
+        batches = 0;
+
+        boolean existed = deleteTree(path, deleteParentWithChildren);
+
+        return new Result(existed, nodesDeleted, batches, (System.nanoTime() - start) / 1000000);
+    }
+
+    private boolean deleteTree(String path, boolean deleteParentWithChildren)
+            throws KeeperException, InterruptedException
+    {
+        // bucket the nodes by depth so the deepest ones can go first, a parent can only be deleted once it is empty
+        final List<List<String>> levels = new ArrayList<>();
+        long found = new TreeCrawler(zk, maxInFlight).crawl(path, (nodePath, depth, stat, data, children) ->
+        {
+            if ( depth == 0 && ! deleteParentWithChildren ) {
+                return;
+            }
+            while ( levels.size() <= depth ) {
+                levels.add( new ArrayList<>() );
+            }
+            levels.get(depth).add(nodePath);
+        });
+
+        List<String> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for ( int depth = levels.size() - 1; depth >= 0; depth-- )
+        {
+            for ( String nodePath : levels.get(depth) )
+            {
+                int opBytes = nodePath.getBytes(StandardCharsets.UTF_8).length + OP_OVERHEAD_BYTES;
+                if ( ! batch.isEmpty() && (batch.size() >= maxBatchSize || batchBytes + opBytes > maxBatchBytes) ) {
+                    deleteBatch(batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(nodePath);
+                batchBytes += opBytes;
+            }
+        }
+        if ( ! batch.isEmpty() ) {
+            deleteBatch(batch);
+        }
+
+        return found > 0;
+    }
+
+    /**
+     * Delete a batch in one transaction. A multi() is all or nothing so if someone else changes the tree underneath us
+     *  we fix up the op that failed and resubmit the rest.
+     */
+    private void deleteBatch(List<String> batch) throws KeeperException, InterruptedException
+    {
+        while ( ! batch.isEmpty() )
+        {
+            List<Op> ops = new ArrayList<>( batch.size() );
+            for ( String nodePath : batch )
+            {
+                // delete whatever version you find
+                ops.add( Op.delete(nodePath, -1) );
+            }
+
+            try {
+                batches++;
+                ZooKeeperMetrics.getDefault().timed( ZooKeeperMetrics.Operation.MULTI, () -> zk.multi(ops) );
+                nodesDeleted += batch.size();
+                return;
+            }
+            catch ( KeeperException ex ) {
+                int failed = NodeHelper.indexOfFailure( ex.getResults() );
+                if ( failed < 0 ) {
+                    throw ex;
+                }
+
+                String nodePath = batch.remove(failed);
+                switch ( ex.code() )
+                {
+                    case NONODE:
+                        // someone beat us to it
+                        break;
+                    case NOTEMPTY:
+                        // children were added after we listed it, clear them out along with the node
+                        deleteTree(nodePath, true);
+                        break;
+                    default:
+                        throw ex;
+                }
+            }
+        }
+    }
+}
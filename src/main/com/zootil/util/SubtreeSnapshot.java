@@ -0,0 +1,536 @@
+package com.zootil.util;
+
+import com.zootil.metrics.ZooKeeperMetrics;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Copies a subtree out to a compact binary snapshot and back in again, say to clone election or config state from
+ *  one environment to another.
+ *
+ * Export crawls the tree with TreeCrawler and streams each node's path relative to the root, its data and whether it
+ *  is ephemeral straight out to the channel, parents ahead of their children and siblings in name order, so the tree
+ *  never has to fit in memory. Restore streams the records back in as pipelined async creates, up to maxInFlight
+ *  outstanding, ZK runs a session's requests in order so a parent is always created before its children and the
+ *  whole restore costs about one round trip per maxInFlight nodes. A node that already exists has its data
+ *  overwritten instead.
+ *
+ * Every record is covered by a CRC32 in the trailer, restoring from a file checks it before touching ZK and restoring
+ *  from any other channel checks it at the end. Once the records are in, restore crawls the restored tree the same
+ *  way export does and checks it comes to the same CRC, so a node that didn't make it, or one already there that the
+ *  snapshot doesn't have, is caught. ACLs aren't kept, restored nodes are open, and ephemeral nodes are restored as
+ *  ephemeral nodes of the restoring session. Sequential nodes keep their names. Restoring to / leaves the ZK root's
+ *  own data alone.
+ *
+ * The format is a header of the magic number, a version byte and the exported root, then for each node
+ *  [int path length][path][byte mode][int data length, -1 for none][data], then [int -1][long node count][long crc].
+ *
+ * Note: both directions wait on async results which are delivered on the client's event thread, so don't use this
+ *  from a Watcher or callback.
+ */
+public class SubtreeSnapshot
+{
+    private static final int MAGIC = 0x5A534E50;
+    private static final byte VERSION = 1;
+    private static final byte PERSISTENT = 0;
+    private static final byte EPHEMERAL = 1;
+    private static final int END_OF_RECORDS = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // throws away what's written, for working out the crc of a tree without keeping it
+    private static final WritableByteChannel DISCARD = new WritableByteChannel()
+    {
+        @Override
+        public int write(ByteBuffer source)
+        {
+            int length = source.remaining();
+            source.position( source.limit() );
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    };
+
+    /**
+     * What an export or restore did
+     */
+    public static final class Result
+    {
+        private final long nodes;
+        private final long bytes;
+        private final long checksum;
+        private final long elapsedMillis;
+
+        Result(long nodes, long bytes, long checksum, long elapsedMillis)
+        {
+            this.nodes = nodes;
+            this.bytes = bytes;
+            this.checksum = checksum;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getNodes()
+        {
+            return nodes;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getChecksum()
+        {
+            return checksum;
+        }
+
+        public long getElapsedMillis()
+        {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d nodes, %d bytes, crc %08x in %dms", nodes, bytes, checksum, elapsedMillis);
+        }
+    }
+
+    private final ZooKeeper zk;
+    private final int maxInFlight;
+
+    /**
+     * @param zk your zookeeper connection
+     */
+    public SubtreeSnapshot(ZooKeeper zk)
+    {
+        this(zk, NodeHelper.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param zk your zookeeper connection
+     * @param maxInFlight the most requests to have outstanding at once in either direction
+     */
+    public SubtreeSnapshot(ZooKeeper zk, int maxInFlight)
+    {
+        if ( maxInFlight < 1 ) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.zk = zk;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Snapshot a path and everything under it to a file, replacing anything already there
+     *
+     * @param path the root of the subtree
+     * @param file where to write the snapshot
+     * @return what was written, no nodes if the path doesn't exist
+     * @throws IOException
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public Result export(String path, Path file) throws IOException, KeeperException, InterruptedException
+    {
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            Result result = export(path, channel);
+            channel.force(false);
+            return result;
+        }
+    }
+
+    /**
+     * Snapshot a path and everything under it
+     *
+     * @param path the root of the subtree
+     * @param channel where to write the snapshot, left open
+     * @return what was written, no nodes if the path doesn't exist
+     * @throws IOException
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public Result export(String path, WritableByteChannel channel) throws IOException, KeeperException, InterruptedException
+    {
+        long start = System.nanoTime();
+        Writer writer = new Writer(channel);
+        writer.header(path);
+        records(path, writer, PERSISTENT, null, false);
+        writer.trailer();
+        return new Result( writer.records, writer.bytes, writer.crc.getValue(), (System.nanoTime() - start) / 1000000 );
+    }
+
+    /**
+     * Crawl a subtree writing a record for each node
+     *
+     * @param keepRoot write the root with the given mode and data rather than what ZK has
+     */
+    private void records(String path, Writer writer, byte rootMode, byte[] rootData, boolean keepRoot)
+            throws IOException, KeeperException, InterruptedException
+    {
+        // the root's own path is stored as empty so the tree can be restored anywhere
+        final int rootLength = path.equals("/") ? 0 : path.length();
+        try {
+            new TreeCrawler(zk, maxInFlight).fetchData(true).sorted(true).crawl(path, (nodePath, depth, stat, data, children) ->
+            {
+                // ZK's own bookkeeping isn't ours to copy
+                if ( nodePath.equals("/zookeeper") || nodePath.startsWith("/zookeeper/") ) {
+                    return;
+                }
+                try {
+                    if ( keepRoot && nodePath.equals(path) ) {
+                        writer.record("", rootMode, rootData);
+                    }
+                    else {
+                        writer.record( nodePath.equals(path) ? "" : nodePath.substring(rootLength), stat.getEphemeralOwner() != 0 ? EPHEMERAL : PERSISTENT, data );
+                    }
+                }
+                catch ( IOException ex ) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        catch ( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Check a snapshot file is intact without touching ZK
+     *
+     * @param file the snapshot
+     * @return what the snapshot holds
+     * @throws IOException if the snapshot can't be read or doesn't match its checksum
+     */
+    public static Result verify(Path file) throws IOException
+    {
+        long start = System.nanoTime();
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+            Reader reader = new Reader(channel);
+            reader.header();
+            while ( reader.next() )
+            {
+                // just reading it through checks it
+            }
+            return new Result( reader.records, reader.bytes, reader.crc.getValue(), (System.nanoTime() - start) / 1000000 );
+        }
+    }
+
+    /**
+     * Restore a snapshot file under a path, checking the file is intact first
+     *
+     * @param file the snapshot
+     * @param path where the snapshot's root goes, it needn't be where it was exported from
+     * @return what was restored
+     * @throws IOException
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public Result restore(Path file, String path) throws IOException, KeeperException, InterruptedException
+    {
+        verify(file);
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+            return restore(channel, path);
+        }
+    }
+
+    /**
+     * Restore a snapshot under a path
+     *
+     * @param channel the snapshot, left open
+     * @param path where the snapshot's root goes, it needn't be where it was exported from
+     * @return what was restored
+     * @throws IOException if the snapshot can't be read or doesn't match its checksum, by which point the nodes it
+     *  holds have been written, or if the restored tree doesn't match the snapshot
+     * @throws KeeperException the first failure other than a node already existing
+     * @throws InterruptedException
+     */
+    public Result restore(ReadableByteChannel channel, String path) throws IOException, KeeperException, InterruptedException
+    {
+        long start = System.nanoTime();
+        Reader reader = new Reader(channel);
+        reader.header();
+
+        String root = path.endsWith("/") && path.length() > 1 ? path.substring(0, path.length() - 1) : path;
+        int parent = root.lastIndexOf('/');
+        if ( parent > 0 ) {
+            NodeHelper.createFullPath( zk, root.substring(0, parent) );
+        }
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicReference<KeeperException> error = new AtomicReference<>();
+        AsyncCallback.StatCallback overwritten = (rc, nodePath, ctx, stat) ->
+        {
+            ZooKeeperMetrics.getDefault().operation( ZooKeeperMetrics.Operation.SET_DATA, (Long) ctx, rc );
+            if ( rc != KeeperException.Code.OK.intValue() ) {
+                error.compareAndSet( null, KeeperException.create(KeeperException.Code.get(rc), nodePath) );
+            }
+            inFlight.release();
+        };
+        AsyncCallback.StringCallback createCallback = (rc, nodePath, ctx, name) ->
+        {
+            byte[] data = (byte[]) ((Object[]) ctx)[0];
+            ZooKeeperMetrics.getDefault().operation( ZooKeeperMetrics.Operation.CREATE, (Long) ((Object[]) ctx)[1],
+                    rc == KeeperException.Code.NODEEXISTS.intValue() ? KeeperException.Code.OK.intValue() : rc );
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if ( code == KeeperException.Code.NODEEXISTS ) {
+                // keep the permit until the overwrite is in too
+                zk.setData( nodePath, data, -1, overwritten, System.nanoTime() );
+                return;
+            }
+            if ( code != KeeperException.Code.OK ) {
+                error.compareAndSet( null, KeeperException.create(code, nodePath) );
+            }
+            inFlight.release();
+        };
+
+        // the ZK root is always there and its data isn't ours to overwrite, but the check needs the snapshot's record
+        final boolean toRoot = root.equals("/");
+        byte rootMode = PERSISTENT;
+        byte[] rootData = null;
+        while ( reader.next() )
+        {
+            // nodes under a failed one will only fail too, stop issuing and report the first error
+            if ( error.get() != null ) {
+                break;
+            }
+            if ( toRoot && reader.path.isEmpty() ) {
+                rootMode = reader.mode;
+                rootData = reader.data;
+                continue;
+            }
+            String nodePath = reader.path.isEmpty() ? root : root.equals("/") ? reader.path : root + reader.path;
+            CreateMode mode = reader.mode == EPHEMERAL ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+            inFlight.acquire();
+            zk.create( nodePath, reader.data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode, createCallback,
+                    new Object[] { reader.data, System.nanoTime() } );
+        }
+
+        // wait for everything outstanding to drain
+        inFlight.acquire(maxInFlight);
+
+        if ( error.get() != null ) {
+            throw error.get();
+        }
+
+        // read what we restored back the way export would and check it comes to what the trailer says
+        Writer check = new Writer(DISCARD);
+        records(root, check, rootMode, rootData, toRoot);
+        check.flush(true);
+        if ( check.records != reader.records || check.crc.getValue() != reader.crc.getValue() ) {
+            throw new IOException(String.format("Restored tree under %s doesn't match the snapshot, expected %d nodes with crc %08x but found %d with crc %08x",
+                    root, reader.records, reader.crc.getValue(), check.records, check.crc.getValue()));
+        }
+        return new Result( reader.records, reader.bytes, reader.crc.getValue(), (System.nanoTime() - start) / 1000000 );
+    }
+
+    /**
+     * Buffers records out to the channel, the crc covers the records but not the header or trailer
+     */
+    private static final class Writer
+    {
+        final WritableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final CRC32 crc = new CRC32();
+        long records;
+        long bytes;
+
+        Writer(WritableByteChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void header(String root) throws IOException
+        {
+            byte[] rootBytes = root.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(MAGIC).put(VERSION).putInt(rootBytes.length).put(rootBytes);
+            flush(false);
+        }
+
+        void record(String path, byte mode, byte[] data) throws IOException
+        {
+            byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            int dataLength = data == null ? -1 : data.length;
+            if ( buffer.remaining() < 9 + pathBytes.length + Math.max(dataLength, 0) ) {
+                flush(true);
+            }
+            buffer.putInt(pathBytes.length).put(pathBytes).put(mode).putInt(dataLength);
+
+            if ( dataLength > buffer.remaining() ) {
+                // bigger than the buffer, send it as it is
+                flush(true);
+                crc.update(data);
+                write( ByteBuffer.wrap(data) );
+            }
+            else if ( dataLength > 0 ) {
+                buffer.put(data);
+            }
+            records++;
+        }
+
+        void trailer() throws IOException
+        {
+            flush(true);
+            buffer.putInt(END_OF_RECORDS).putLong(records).putLong( crc.getValue() );
+            flush(false);
+        }
+
+        private void flush(boolean checksummed) throws IOException
+        {
+            buffer.flip();
+            if ( checksummed ) {
+                crc.update( buffer.duplicate() );
+            }
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer source) throws IOException
+        {
+            while ( source.hasRemaining() )
+            {
+                bytes += channel.write(source);
+            }
+        }
+    }
+
+    /**
+     * Reads records back in from the channel one at a time, checking the crc against the trailer
+     */
+    private static final class Reader
+    {
+        final ReadableByteChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final CRC32 crc = new CRC32();
+        long records;
+        long bytes;
+        // the current record
+        String path;
+        byte mode;
+        byte[] data;
+
+        Reader(ReadableByteChannel channel)
+        {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        void header() throws IOException
+        {
+            fill(9);
+            if ( buffer.getInt() != MAGIC ) {
+                throw new IOException("Not a subtree snapshot");
+            }
+            byte version = buffer.get();
+            if ( version != VERSION ) {
+                throw new IOException(String.format("Unsupported snapshot version %d", version));
+            }
+            int rootLength = buffer.getInt();
+            fill(rootLength);
+            buffer.position( buffer.position() + rootLength );
+        }
+
+        /**
+         * @return false once the trailer has been read and checked
+         */
+        boolean next() throws IOException
+        {
+            fill(4);
+            int pathLength = buffer.getInt();
+            if ( pathLength == END_OF_RECORDS ) {
+                fill(16);
+                long count = buffer.getLong();
+                long expected = buffer.getLong();
+                if ( count != records || expected != crc.getValue() ) {
+                    throw new IOException(String.format("Snapshot is corrupt, expected %d nodes with crc %08x but read %d with crc %08x",
+                            count, expected, records, crc.getValue()));
+                }
+                return false;
+            }
+            checksum(-4, 4);
+
+            fill(pathLength + 5);
+            checksum(0, pathLength + 5);
+            byte[] pathBytes = new byte[pathLength];
+            buffer.get(pathBytes);
+            path = new String(pathBytes, StandardCharsets.UTF_8);
+            mode = buffer.get();
+            int dataLength = buffer.getInt();
+
+            if ( dataLength < 0 ) {
+                data = null;
+            }
+            else {
+                fill(dataLength);
+                checksum(0, dataLength);
+                data = new byte[dataLength];
+                buffer.get(data);
+            }
+            records++;
+            return true;
+        }
+
+        /**
+         * Fold length bytes starting offset from the current position into the crc
+         */
+        private void checksum(int offset, int length)
+        {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position( buffer.position() + offset );
+            slice.limit( slice.position() + length );
+            crc.update(slice);
+        }
+
+        /**
+         * Make sure at least count bytes are buffered, growing the buffer for anything bigger than it
+         */
+        private void fill(int count) throws IOException
+        {
+            if ( buffer.remaining() >= count ) {
+                return;
+            }
+            if ( buffer.capacity() < count ) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(count);
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            else {
+                buffer.compact();
+            }
+            while ( buffer.position() < count )
+            {
+                int read = channel.read(buffer);
+                if ( read < 0 ) {
+                    throw new IOException("Snapshot ended early");
+                }
+                bytes += read;
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.zootil.util;
+
+import com.zootil.metrics.ZooKeeperMetrics;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Walks a subtree with async getChildren (and optionally getData) calls, keeping up to maxInFlight of them outstanding
+ *  at once instead of paying a blocking round trip per node.
+ *
+ * The ZK callbacks only queue their results, every node is handed to the handler on the thread that called crawl so
+ *  handlers don't need to be thread safe. That also means crawl can't be called from a Watcher or async callback,
+ *  the results it waits on are delivered on the client's event thread.
+ */
+class TreeCrawler
+{
+    interface NodeHandler
+    {
+        /**
+         * @param path the full path of the node
+         * @param depth how far below the crawl root the node is, the root is 0
+         * @param stat the node's stat
+         * @param data the node's data, null unless data is being fetched
+         * @param children the node's children, names only
+         */
+        void handle(String path, int depth, Stat stat, byte[] data, List<String> children)
+                throws KeeperException, InterruptedException;
+    }
+
+    private static final class Visit
+    {
+        final String path;
+        final int depth;
+        int rc;
+        Stat stat;
+        byte[] data;
+        List<String> children;
+        // how many of the node's requests haven't come back yet
+        int waitingOn;
+        long issuedAt;
+
+        Visit(String path, int depth)
+        {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    private final ZooKeeper zk;
+    private final int maxInFlight;
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxNodes = Long.MAX_VALUE;
+    private boolean fetchData;
+    private boolean sorted;
+
+    TreeCrawler(ZooKeeper zk, int maxInFlight)
+    {
+        if ( maxInFlight < 1 ) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.zk = zk;
+        this.maxInFlight = maxInFlight;
+    }
+
+    TreeCrawler maxDepth(int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    TreeCrawler maxNodes(long maxNodes)
+    {
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    TreeCrawler fetchData(boolean fetchData)
+    {
+        this.fetchData = fetchData;
+        return this;
+    }
+
+    /**
+     * Visit each node's children in name order, the same tree is then always crawled in the same order whatever order
+     *  the server keeps the children in
+     */
+    TreeCrawler sorted(boolean sorted)
+    {
+        this.sorted = sorted;
+        return this;
+    }
+
+    /**
+     * Crawl everything under and including root. Nodes that disappear while the crawl is running are skipped.
+     *
+     * @param root the path to start from
+     * @param handler called once for every node found
+     * @return the number of nodes handed to the handler, 0 if the root itself doesn't exist
+     * @throws KeeperException the first failure other than a node disappearing
+     * @throws InterruptedException
+     */
+    long crawl(String root, NodeHandler handler) throws KeeperException, InterruptedException
+    {
+        // the ctx of every request is its Visit, the callbacks all run on the client's single event thread and the
+        //  Visit is only queued back once the last of its requests completes
+        LinkedBlockingQueue<Visit> results = new LinkedBlockingQueue<>();
+        AsyncCallback.Children2Callback childrenCallback = (rc, path, ctx, children, stat) ->
+        {
+            Visit visit = (Visit) ctx;
+            ZooKeeperMetrics.getDefault().operation(ZooKeeperMetrics.Operation.GET_CHILDREN, visit.issuedAt, rc);
+            visit.children = children;
+            visit.stat = stat;
+            complete(visit, rc, results);
+        };
+        AsyncCallback.DataCallback dataCallback = (rc, path, ctx, data, stat) ->
+        {
+            Visit visit = (Visit) ctx;
+            ZooKeeperMetrics.getDefault().operation(ZooKeeperMetrics.Operation.GET_DATA, visit.issuedAt, rc);
+            visit.data = data;
+            complete(visit, rc, results);
+        };
+
+        ArrayDeque<Visit> pending = new ArrayDeque<>();
+        pending.add( new Visit(root, 0) );
+        int requestsPerNode = fetchData ? 2 : 1;
+        int outstanding = 0;
+        long issued = 1;
+        long visited = 0;
+
+        while ( ! pending.isEmpty() || outstanding > 0 )
+        {
+            while ( ! pending.isEmpty() && outstanding + requestsPerNode <= Math.max(maxInFlight, requestsPerNode) )
+            {
+                Visit next = pending.poll();
+                next.waitingOn = requestsPerNode;
+                next.issuedAt = System.nanoTime();
+                if ( fetchData ) {
+                    zk.getData( next.path, false, dataCallback, next );
+                }
+                zk.getChildren( next.path, false, childrenCallback, next );
+                outstanding += requestsPerNode;
+            }
+
+            Visit visit = results.take();
+            outstanding -= requestsPerNode;
+
+            KeeperException.Code code = KeeperException.Code.get(visit.rc);
+            if ( code == KeeperException.Code.NONODE ) {
+                // deleted out from under us, nothing left to visit
+                continue;
+            }
+            if ( code != KeeperException.Code.OK ) {
+                throw KeeperException.create(code, visit.path);
+            }
+
+            visited++;
+            if ( sorted ) {
+                Collections.sort(visit.children);
+            }
+            handler.handle( visit.path, visit.depth, visit.stat, visit.data, visit.children );
+
+            if ( visit.depth < maxDepth ) {
+                // in the case of the root of all the zookeeper tree don't append a '/'
+                String parentPath = visit.path.equals("/") ? visit.path : visit.path + "/";
+                for ( String child : visit.children )
+                {
+                    if ( issued >= maxNodes ) {
+                        break;
+                    }
+                    pending.add( new Visit(parentPath + child, visit.depth + 1) );
+                    issued++;
+                }
+            }
+        }
+
+        return visited;
+    }
+
+    /**
+     * Keep the first failure seen for the node and hand it back once all of its requests are in
+     */
+    private static void complete(Visit visit, int rc, LinkedBlockingQueue<Visit> results)
+    {
+        if ( visit.rc == KeeperException.Code.OK.intValue() ) {
+            visit.rc = rc;
+        }
+        if ( --visit.waitingOn == 0 ) {
+            results.add(visit);
+        }
+    }
+}
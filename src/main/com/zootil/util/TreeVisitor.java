@@ -0,0 +1,17 @@
+package com.zootil.util;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Callback for TreeWalker, nodes are pushed in as they arrive from ZK, not in any particular tree order.
+ */
+public interface TreeVisitor
+{
+    /**
+     * @param path the full path of the node
+     * @param depth how far below the walk root the node is, the root is 0
+     * @param stat the node's stat
+     * @param data the node's data, null unless the walker was asked to fetch it
+     */
+    void visit(String path, int depth, Stat stat, byte[] data);
+}
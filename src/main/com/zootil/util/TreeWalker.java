@@ -0,0 +1,121 @@
+package com.zootil.util;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Streams a subtree to a TreeVisitor or Appendable. Children are listed with concurrent async calls, bounded by
+ *  maxInFlight, and each node is handed over as soon as its results are in rather than building the whole tree in
+ *  memory first. Siblings come out in whatever order ZK answers, a node always comes out before its children.
+ *
+ * Note: the walk waits on async results which are delivered on the client's event thread, so don't use this from a
+ *  Watcher or callback.
+ */
+public class TreeWalker
+{
+    private final ZooKeeper zk;
+    private int maxInFlight = NodeHelper.DEFAULT_MAX_IN_FLIGHT;
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxNodes = Long.MAX_VALUE;
+    private boolean fetchData;
+
+    /**
+     * @param zk your zookeeper connection
+     */
+    public TreeWalker(ZooKeeper zk)
+    {
+        this.zk = zk;
+    }
+
+    /**
+     * @param maxInFlight the most requests to have outstanding at once
+     * @return this walker
+     */
+    public TreeWalker maxInFlight(int maxInFlight)
+    {
+        if ( maxInFlight < 1 ) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param maxDepth how far below the root to go, 0 visits just the root
+     * @return this walker
+     */
+    public TreeWalker maxDepth(int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * @param maxNodes stop once this many nodes have been visited
+     * @return this walker
+     */
+    public TreeWalker maxNodes(long maxNodes)
+    {
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    /**
+     * @param fetchData whether to getData each node as well, costs an extra request per node
+     * @return this walker
+     */
+    public TreeWalker fetchData(boolean fetchData)
+    {
+        this.fetchData = fetchData;
+        return this;
+    }
+
+    /**
+     * Walk the tree under and including path
+     *
+     * @param path the root of the walk
+     * @param visitor called once for each node, always on the calling thread
+     * @return the number of nodes visited, 0 if path doesn't exist
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public long walk(String path, TreeVisitor visitor) throws KeeperException, InterruptedException
+    {
+        return new TreeCrawler(zk, maxInFlight)
+                .maxDepth(maxDepth)
+                .maxNodes(maxNodes)
+                .fetchData(fetchData)
+                .crawl(path, (nodePath, depth, stat, data, children) -> visitor.visit(nodePath, depth, stat, data));
+    }
+
+    /**
+     * Walk the tree under and including path writing one path per line
+     *
+     * @param path the root of the walk
+     * @param out where to write the paths
+     * @return the number of nodes written, 0 if path doesn't exist
+     * @throws IOException
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public long walk(String path, Appendable out) throws IOException, KeeperException, InterruptedException
+    {
+        try {
+            return walk(path, (nodePath, depth, stat, data) ->
+            {
+                try {
+                    out.append(nodePath).append('\n');
+                }
+                catch ( IOException ex ) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        catch ( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+    }
+}
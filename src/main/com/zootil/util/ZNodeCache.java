@@ -0,0 +1,355 @@
+package com.zootil.util;
+
+import com.zootil.metrics.ZooKeeperMetrics;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Serves getData, getChildren and exists from memory, for config and metadata that's read far more often than it
+ *  changes.
+ *
+ * Every read that goes to ZK leaves a one shot watch behind and the entry is dropped the moment the watch fires, so
+ *  the next read fetches it fresh. A node that doesn't exist is cached too, with an exists watch to hear when it's
+ *  created. Reads go out async and land in the cache on the client's event thread, the same thread watch events
+ *  arrive on, and ZK delivers a watch event before the result of any read that sees the change, so a stale result
+ *  can never land after the event that should have dropped it.
+ *
+ * Concurrent misses on the same path share a single request. The cache holds at most maxEntries entries, data and
+ *  children count separately, and drops the least recently used beyond that, a dropped entry's watch is left to fire
+ *  harmlessly since 3.4 clients can't remove watches. Everything is dropped when the session expires.
+ *
+ * Reads block on a miss so don't call them from a watcher or callback.
+ */
+public class ZNodeCache implements Watcher
+{
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // stands in for a node that doesn't exist
+    private static final Object MISSING = new Object();
+
+    /**
+     * A cached node, the data is shared so don't modify it
+     */
+    public static final class Node
+    {
+        private final byte[] data;
+        private final Stat stat;
+
+        Node(byte[] data, Stat stat)
+        {
+            this.data = data;
+            this.stat = stat;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public Stat getStat()
+        {
+            return stat;
+        }
+    }
+
+    private final Supplier<ZooKeeper> zooKeeper;
+    private final ZooKeeperMetrics metrics = ZooKeeperMetrics.getDefault();
+    // keyed by 'd' or 'c' then the path, for data and children
+    private final LinkedHashMap<String, Object> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param zooKeeper the session to use
+     */
+    public ZNodeCache(ZooKeeper zooKeeper)
+    {
+        this( () -> zooKeeper, DEFAULT_MAX_ENTRIES );
+    }
+
+    /**
+     * @param zooKeeper hands out the current session, i.e. ElectionManager::getZooKeeper
+     * @param maxEntries the most entries to hold before dropping the least recently used
+     */
+    public ZNodeCache(Supplier<ZooKeeper> zooKeeper, int maxEntries)
+    {
+        if ( maxEntries < 1 ) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.zooKeeper = zooKeeper;
+        this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest)
+            {
+                if ( size() > maxEntries ) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param path the node
+     * @return the node's data and stat or null if it doesn't exist
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public Node getNode(String path) throws KeeperException, InterruptedException
+    {
+        Object node = get('d', path);
+        return node == MISSING ? null : (Node) node;
+    }
+
+    /**
+     * @param path the node
+     * @return the node's data, shared so don't modify it
+     * @throws KeeperException.NoNodeException if the node doesn't exist
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public byte[] getData(String path) throws KeeperException, InterruptedException
+    {
+        Node node = getNode(path);
+        if ( node == null ) {
+            throw new KeeperException.NoNodeException(path);
+        }
+        return node.getData();
+    }
+
+    /**
+     * @param path the node
+     * @return the node's stat or null if it doesn't exist
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public Stat exists(String path) throws KeeperException, InterruptedException
+    {
+        Node node = getNode(path);
+        return node == null ? null : node.getStat();
+    }
+
+    /**
+     * @param path the node
+     * @return the node's children, unmodifiable
+     * @throws KeeperException.NoNodeException if the node doesn't exist
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getChildren(String path) throws KeeperException, InterruptedException
+    {
+        Object children = get('c', path);
+        if ( children == MISSING ) {
+            throw new KeeperException.NoNodeException(path);
+        }
+        return (List<String>) children;
+    }
+
+    /**
+     * Drop everything, the next read of every path goes to ZK
+     */
+    public void clear()
+    {
+        synchronized ( entries ) {
+            entries.clear();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * @return how many entries were dropped because their watch fired
+     */
+    public long getInvalidationCount()
+    {
+        return invalidations.sum();
+    }
+
+    public int size()
+    {
+        synchronized ( entries ) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * ZK callback hook, drop whatever the event says has changed
+     *
+     * @param watchedEvent the event ZK wants to pass on
+     */
+    @Override
+    public void process(WatchedEvent watchedEvent)
+    {
+        switch ( watchedEvent.getType() )
+        {
+            case None:
+                // the watches went with the session
+                if ( watchedEvent.getState() == Event.KeeperState.Expired ) {
+                    clear();
+                }
+                break;
+            case NodeDataChanged:
+                invalidate('d', watchedEvent.getPath());
+                break;
+            case NodeChildrenChanged:
+                invalidate('c', watchedEvent.getPath());
+                break;
+            default:
+                // created or deleted, both the data and the children have changed
+                invalidate('d', watchedEvent.getPath());
+                invalidate('c', watchedEvent.getPath());
+                break;
+        }
+    }
+
+    private void invalidate(char kind, String path)
+    {
+        synchronized ( entries ) {
+            if ( entries.remove(kind + path) != null ) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    private Object get(char kind, String path) throws KeeperException, InterruptedException
+    {
+        String key = kind + path;
+        Object cached;
+        synchronized ( entries ) {
+            cached = entries.get(key);
+        }
+        if ( cached != null ) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        // only the first miss on a path goes to ZK, the rest wait on its result
+        CompletableFuture<Object> fetch = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, fetch);
+        if ( existing != null ) {
+            fetch = existing;
+        }
+        else if ( kind == 'd' ) {
+            fetchData(key, path, fetch);
+        }
+        else {
+            fetchChildren(key, path, fetch);
+        }
+
+        try {
+            return fetch.get();
+        }
+        catch ( ExecutionException ex ) {
+            if ( ex.getCause() instanceof KeeperException ) {
+                throw (KeeperException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private void fetchData(String key, String path, CompletableFuture<Object> fetch)
+    {
+        long start = System.nanoTime();
+        zooKeeper.get().getData( path, this, (rc, dataPath, ctx, data, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.GET_DATA, start, rc);
+            if ( rc == KeeperException.Code.NONODE.intValue() ) {
+                fetchMissing(key, path, fetch);
+            }
+            else {
+                complete( key, fetch, rc, new Node(data, stat) );
+            }
+        }, null );
+    }
+
+    private void fetchChildren(String key, String path, CompletableFuture<Object> fetch)
+    {
+        long start = System.nanoTime();
+        zooKeeper.get().getChildren( path, this, (rc, childrenPath, ctx, children) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.GET_CHILDREN, start, rc);
+            if ( rc == KeeperException.Code.NONODE.intValue() ) {
+                fetchMissing(key, path, fetch);
+            }
+            else {
+                complete( key, fetch, rc, children == null ? null : Collections.unmodifiableList(children) );
+            }
+        }, null );
+    }
+
+    /**
+     * The node isn't there, no watch was left by the read so put an exists watch on it to hear when it's created
+     */
+    private void fetchMissing(String key, String path, CompletableFuture<Object> fetch)
+    {
+        long start = System.nanoTime();
+        zooKeeper.get().exists( path, this, (rc, existsPath, ctx, stat) ->
+        {
+            metrics.operation(ZooKeeperMetrics.Operation.EXISTS, start, rc);
+            if ( rc == KeeperException.Code.OK.intValue() && key.charAt(0) == 'd' ) {
+                // created in the meantime, read it again
+                fetchData(key, path, fetch);
+            }
+            else if ( rc == KeeperException.Code.OK.intValue() ) {
+                fetchChildren(key, path, fetch);
+            }
+            else {
+                complete( key, fetch, rc == KeeperException.Code.NONODE.intValue() ? KeeperException.Code.OK.intValue() : rc,
+                        MISSING );
+            }
+        }, null );
+    }
+
+    /**
+     * Runs on the event thread, cache the result before anyone can see it
+     */
+    private void complete(String key, CompletableFuture<Object> fetch, int rc, Object value)
+    {
+        if ( rc == KeeperException.Code.OK.intValue() ) {
+            synchronized ( entries ) {
+                entries.put(key, value);
+            }
+        }
+        inFlight.remove(key, fetch);
+
+        if ( rc == KeeperException.Code.OK.intValue() ) {
+            fetch.complete(value);
+        }
+        else {
+            fetch.completeExceptionally( KeeperException.create( KeeperException.Code.get(rc), key.substring(1) ) );
+        }
+    }
+}